@@ -0,0 +1,88 @@
+package com.deBijenkorf.imageresizeservice.util;
+
+import com.deBijenkorf.imageresizeservice.config.ImageConfig;
+import com.deBijenkorf.imageresizeservice.config.ImageResizeExecutorConfig;
+import com.deBijenkorf.imageresizeservice.model.ImageType;
+import com.deBijenkorf.imageresizeservice.model.ResamplingType;
+import com.deBijenkorf.imageresizeservice.model.ScaleType;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Deterministic product-photo-like sources for the benchmarks: smooth gradients with sharp shapes, so that
+ * codecs and resampling filters get realistic work instead of flat colour.
+ */
+final class BenchmarkImages {
+
+    private BenchmarkImages() {
+    }
+
+    static BufferedImage source(String size, int imageType) {
+        String[] dimensions = size.split("x");
+        int width = Integer.parseInt(dimensions[0]);
+        int height = Integer.parseInt(dimensions[1]);
+        BufferedImage image = new BufferedImage(width, height, imageType);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        graphics.setPaint(new GradientPaint(0, 0, new Color(0xf2e6d9), width, height, new Color(0x2b4162)));
+        graphics.fillRect(0, 0, width, height);
+        Random random = new Random(42);
+        for (int i = 0; i < 200; i++) {
+            graphics.setColor(new Color(random.nextInt(0xffffff)));
+            int x = random.nextInt(width);
+            int y = random.nextInt(height);
+            int w = 1 + random.nextInt(Math.max(1, width / 8));
+            int h = 1 + random.nextInt(Math.max(1, height / 8));
+            if (i % 2 == 0) {
+                graphics.fillOval(x, y, w, h);
+            } else {
+                graphics.drawRect(x, y, w, h);
+            }
+        }
+        graphics.dispose();
+        return image;
+    }
+
+    static byte[] encode(BufferedImage image, String format) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        if (!ImageIO.write(image, format, output)) {
+            throw new IOException("No writer for " + format);
+        }
+        return output.toByteArray();
+    }
+
+    static ImageResizeUtil resizeUtil(ScaleType scaleType, ImageType imageType, int quality, ResamplingType resampling) {
+        return resizeUtil("200x200", scaleType, imageType, quality, resampling);
+    }
+
+    static ImageResizeUtil resizeUtil(String variantSize, ScaleType scaleType, ImageType imageType, int quality,
+                                      ResamplingType resampling) {
+        return resizeUtil(variantSize, scaleType, imageType, quality, resampling, new ImageResizeExecutorConfig());
+    }
+
+    static ImageResizeUtil resizeUtil(String variantSize, ScaleType scaleType, ImageType imageType, int quality,
+                                      ResamplingType resampling, ImageResizeExecutorConfig resizeExecutorConfig) {
+        String[] dimensions = variantSize.split("x");
+        // The configuration takes the height first
+        ImageConfig imageConfig = new ImageConfig(Integer.parseInt(dimensions[1]), Integer.parseInt(dimensions[0]),
+                quality, scaleType, "#3260a8", imageType, resampling);
+        return new ImageResizeUtil(imageConfig, new ImageUtil(),
+                new ImagePipelineMetrics(new SimpleMeterRegistry(), imageConfig), resizeExecutorConfig);
+    }
+
+    static int imageType(String name) {
+        return switch (name) {
+            case "INT_RGB" -> BufferedImage.TYPE_INT_RGB;
+            case "INT_ARGB" -> BufferedImage.TYPE_INT_ARGB;
+            case "3BYTE_BGR" -> BufferedImage.TYPE_3BYTE_BGR;
+            case "4BYTE_ABGR" -> BufferedImage.TYPE_4BYTE_ABGR;
+            default -> throw new IllegalArgumentException("Unknown image type " + name);
+        };
+    }
+}
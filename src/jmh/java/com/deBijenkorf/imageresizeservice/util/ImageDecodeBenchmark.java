@@ -0,0 +1,72 @@
+package com.deBijenkorf.imageresizeservice.util;
+
+import com.deBijenkorf.imageresizeservice.model.ImageType;
+import com.deBijenkorf.imageresizeservice.model.ResamplingType;
+import com.deBijenkorf.imageresizeservice.model.ScaleType;
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The decode stage of {@link ImageResizeUtil#resize(byte[])} with {@link ImageUtil}: the header probe, and the
+ * decode of the region and subsampling that the resize computes for a 200x200 variant of each scale type.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ImageDecodeBenchmark {
+
+    @Param({"jpg", "png"})
+    public String format;
+
+    @Param({"640x480", "1920x1080", "4000x3000"})
+    public String sourceSize;
+
+    @Param({"Crop", "Fill"})
+    public ScaleType scaleType;
+
+    @Param({"Java2D", "Lanczos"})
+    public ResamplingType resampling;
+
+    private final ImageUtil imageUtil = new ImageUtil();
+
+    private ImageResizeUtil imageResizeUtil;
+
+    private byte[] encodedSource;
+
+    private Rectangle region;
+
+    private int subsampling;
+
+    @Setup
+    public void setup() throws IOException {
+        imageResizeUtil = BenchmarkImages.resizeUtil(scaleType, ImageType.JPG, 80, resampling);
+        BufferedImage source = BenchmarkImages.source(sourceSize, BufferedImage.TYPE_INT_RGB);
+        encodedSource = BenchmarkImages.encode(source, format);
+        region = imageResizeUtil.sourceRegion(source.getWidth(), source.getHeight());
+        subsampling = imageResizeUtil.subsampling(region);
+    }
+
+    @Benchmark
+    public ImageHeader readHeader() throws IOException {
+        return imageUtil.readHeader(encodedSource);
+    }
+
+    @Benchmark
+    public BufferedImage decodeRegion() throws IOException {
+        return imageUtil.bufferedImage(encodedSource, region, subsampling);
+    }
+
+    @Benchmark
+    public BufferedImage readHeaderAndDecode() throws IOException {
+        ImageHeader header = imageUtil.readHeader(encodedSource);
+        Rectangle headerRegion = imageResizeUtil.sourceRegion(header.getWidth(), header.getHeight());
+        return imageUtil.bufferedImage(encodedSource, headerRegion, imageResizeUtil.subsampling(headerRegion));
+    }
+}
@@ -0,0 +1,46 @@
+package com.deBijenkorf.imageresizeservice.util;
+
+import com.deBijenkorf.imageresizeservice.model.ImageContent;
+import com.deBijenkorf.imageresizeservice.model.ImageType;
+import com.deBijenkorf.imageresizeservice.model.ResamplingType;
+import com.deBijenkorf.imageresizeservice.model.ScaleType;
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding of a rendered variant by {@link ImageResizeUtil} for each image type and {@code quality} setting.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ImageEncodeBenchmark {
+
+    @Param({"JPG", "PNG"})
+    public ImageType imageType;
+
+    @Param({"25", "50", "80", "100"})
+    public int quality;
+
+    @Param({"200x200", "800x800"})
+    public String variantSize;
+
+    private ImageResizeUtil imageResizeUtil;
+
+    private BufferedImage variant;
+
+    @Setup
+    public void setup() {
+        imageResizeUtil = BenchmarkImages.resizeUtil(ScaleType.Crop, imageType, quality, ResamplingType.Java2D);
+        variant = BenchmarkImages.source(variantSize, BufferedImage.TYPE_INT_RGB);
+    }
+
+    @Benchmark
+    public ImageContent encode() throws Exception {
+        return imageResizeUtil.encode(variant);
+    }
+}
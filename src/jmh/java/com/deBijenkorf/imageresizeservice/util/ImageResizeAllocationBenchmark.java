@@ -0,0 +1,58 @@
+package com.deBijenkorf.imageresizeservice.util;
+
+import com.deBijenkorf.imageresizeservice.config.ImageResizeExecutorConfig;
+import com.deBijenkorf.imageresizeservice.model.ImageContent;
+import com.deBijenkorf.imageresizeservice.model.ImageType;
+import com.deBijenkorf.imageresizeservice.model.ResamplingType;
+import com.deBijenkorf.imageresizeservice.model.ScaleType;
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Allocation of one miss, with the {@link RasterPool} buffers and with pooling switched off, as reported in
+ * {@code gc.alloc.rate.norm} by the GC profiler the jmh task runs with.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ImageResizeAllocationBenchmark {
+
+    @Param({"Crop", "Fill"})
+    public ScaleType scaleType;
+
+    @Param({"Java2D", "Lanczos"})
+    public ResamplingType resampling;
+
+    @Param({"200x200", "1200x1200"})
+    public String variantSize;
+
+    @Param({"4000x3000"})
+    public String sourceSize;
+
+    @Param({"true", "false"})
+    public boolean pooledBuffers;
+
+    private ImageResizeUtil imageResizeUtil;
+
+    private byte[] encodedSource;
+
+    @Setup
+    public void setup() throws IOException {
+        ImageResizeExecutorConfig resizeExecutorConfig = new ImageResizeExecutorConfig();
+        resizeExecutorConfig.setPooledBuffers(pooledBuffers);
+        imageResizeUtil = BenchmarkImages.resizeUtil(variantSize, scaleType, ImageType.JPG, 80, resampling,
+                resizeExecutorConfig);
+        encodedSource = BenchmarkImages.encode(BenchmarkImages.source(sourceSize, BufferedImage.TYPE_INT_RGB), "jpg");
+    }
+
+    @Benchmark
+    public ImageContent resize() throws IOException {
+        return imageResizeUtil.resize(encodedSource);
+    }
+}
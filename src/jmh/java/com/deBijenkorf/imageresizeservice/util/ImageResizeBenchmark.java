@@ -0,0 +1,59 @@
+package com.deBijenkorf.imageresizeservice.util;
+
+import com.deBijenkorf.imageresizeservice.model.ImageContent;
+import com.deBijenkorf.imageresizeservice.model.ImageType;
+import com.deBijenkorf.imageresizeservice.model.ResamplingType;
+import com.deBijenkorf.imageresizeservice.model.ScaleType;
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ImageResizeUtil#resize} for every scale type, from an encoded original as in production and from an
+ * already decoded image of each {@link BufferedImage} type.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ImageResizeBenchmark {
+
+    @Param({"Crop", "Fill", "Skew"})
+    public ScaleType scaleType;
+
+    @Param({"640x480", "1920x1080", "4000x3000"})
+    public String sourceSize;
+
+    @Param({"INT_RGB", "3BYTE_BGR", "INT_ARGB"})
+    public String sourceType;
+
+    @Param({"Java2D", "Lanczos"})
+    public ResamplingType resampling;
+
+    private ImageResizeUtil imageResizeUtil;
+
+    private BufferedImage decodedSource;
+
+    private byte[] encodedSource;
+
+    @Setup
+    public void setup() throws IOException {
+        imageResizeUtil = BenchmarkImages.resizeUtil(scaleType, ImageType.JPG, 80, resampling);
+        decodedSource = BenchmarkImages.source(sourceSize, BenchmarkImages.imageType(sourceType));
+        encodedSource = BenchmarkImages.encode(BenchmarkImages.source(sourceSize, BufferedImage.TYPE_INT_RGB), "jpg");
+    }
+
+    @Benchmark
+    public ImageContent resizeEncoded() throws IOException {
+        return imageResizeUtil.resize(encodedSource);
+    }
+
+    @Benchmark
+    public ImageContent resizeDecoded() throws IOException {
+        return imageResizeUtil.resize(decodedSource);
+    }
+}
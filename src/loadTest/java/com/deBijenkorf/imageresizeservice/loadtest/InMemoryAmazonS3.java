@@ -0,0 +1,142 @@
+package com.deBijenkorf.imageresizeservice.loadtest;
+
+import com.amazonaws.services.s3.AbstractAmazonS3;
+import com.amazonaws.services.s3.Headers;
+import com.amazonaws.services.s3.model.*;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest.KeyVersion;
+import com.amazonaws.services.s3.model.DeleteObjectsResult.DeletedObject;
+import com.amazonaws.util.BinaryUtils;
+import com.amazonaws.util.Md5Utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Amazon S3 stand-in holding the objects in memory. Implements the calls made by the ImageDao, each delayed by
+ * a fixed latency to model the round trip to a real bucket; every other call is unsupported.
+ */
+public class InMemoryAmazonS3 extends AbstractAmazonS3 {
+
+    private final Map<String, StoredObject> objects = new ConcurrentHashMap<>();
+    private final Duration latency;
+    private final AtomicLong calls = new AtomicLong();
+
+    public InMemoryAmazonS3(Duration latency) {
+        this.latency = latency;
+    }
+
+    @Override
+    public S3Object getObject(String bucketName, String key) {
+        StoredObject storedObject = find(bucketName, key);
+        S3Object s3Object = new S3Object();
+        s3Object.setBucketName(bucketName);
+        s3Object.setKey(key);
+        s3Object.setObjectMetadata(storedObject.metadata.clone());
+        s3Object.setObjectContent(new ByteArrayInputStream(storedObject.content));
+        return s3Object;
+    }
+
+    @Override
+    public ObjectMetadata getObjectMetadata(String bucketName, String key) {
+        return find(bucketName, key).metadata.clone();
+    }
+
+    @Override
+    public boolean doesObjectExist(String bucketName, String objectName) {
+        roundTrip();
+        return objects.containsKey(path(bucketName, objectName));
+    }
+
+    @Override
+    public PutObjectResult putObject(PutObjectRequest putObjectRequest) {
+        roundTrip();
+        byte[] content;
+        try (InputStream inputStream = putObjectRequest.getInputStream()) {
+            content = inputStream.readAllBytes();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        String etag = BinaryUtils.toHex(Md5Utils.computeMD5Hash(content));
+        ObjectMetadata metadata = putObjectRequest.getMetadata() == null
+                ? new ObjectMetadata()
+                : putObjectRequest.getMetadata().clone();
+        metadata.setContentLength(content.length);
+        metadata.setHeader(Headers.ETAG, etag);
+        metadata.setLastModified(new Date());
+        objects.put(path(putObjectRequest.getBucketName(), putObjectRequest.getKey()),
+                new StoredObject(content, metadata));
+
+        PutObjectResult result = new PutObjectResult();
+        result.setETag(etag);
+        result.setMetadata(metadata);
+        return result;
+    }
+
+    @Override
+    public void deleteObject(String bucketName, String key) {
+        roundTrip();
+        objects.remove(path(bucketName, key));
+    }
+
+    @Override
+    public DeleteObjectsResult deleteObjects(DeleteObjectsRequest deleteObjectsRequest) {
+        roundTrip();
+        List<DeletedObject> deletedObjects = new ArrayList<>();
+        for (KeyVersion keyVersion : deleteObjectsRequest.getKeys()) {
+            objects.remove(path(deleteObjectsRequest.getBucketName(), keyVersion.getKey()));
+            DeletedObject deletedObject = new DeletedObject();
+            deletedObject.setKey(keyVersion.getKey());
+            deletedObjects.add(deletedObject);
+        }
+        return new DeleteObjectsResult(deleteObjectsRequest.getQuiet() ? List.of() : deletedObjects);
+    }
+
+    public int size() {
+        return objects.size();
+    }
+
+    public long calls() {
+        return calls.get();
+    }
+
+    private StoredObject find(String bucketName, String key) {
+        roundTrip();
+        StoredObject storedObject = objects.get(path(bucketName, key));
+        if (storedObject == null) {
+            AmazonS3Exception notFound = new AmazonS3Exception("The specified key does not exist.");
+            notFound.setStatusCode(404);
+            notFound.setErrorCode("NoSuchKey");
+            throw notFound;
+        }
+        return storedObject;
+    }
+
+    private void roundTrip() {
+        calls.incrementAndGet();
+        if (latency.isZero()) {
+            return;
+        }
+        try {
+            Thread.sleep(latency.toMillis());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted during a simulated S3 call", e);
+        }
+    }
+
+    private static String path(String bucketName, String key) {
+        return bucketName + '|' + key;
+    }
+
+    private record StoredObject(byte[] content, ObjectMetadata metadata) {
+    }
+}
@@ -0,0 +1,63 @@
+package com.deBijenkorf.imageresizeservice.loadtest;
+
+import java.util.Arrays;
+
+/**
+ * Latencies of one kind of request, recorded by a single load-generator thread and merged after the run.
+ * Keeps every sample, so that the tail percentiles are exact rather than bucketed.
+ */
+final class LatencyRecorder {
+
+    private long[] nanos = new long[1024];
+    private int count;
+    private long errors;
+    private long shed;
+
+    void record(long elapsedNanos, int status) {
+        if (count == nanos.length) {
+            nanos = Arrays.copyOf(nanos, count * 2);
+        }
+        nanos[count++] = elapsedNanos;
+        if (status == 503) {
+            shed++;
+        } else if (status < 200 || status >= 400) {
+            errors++;
+        }
+    }
+
+    void merge(LatencyRecorder other) {
+        if (count + other.count > nanos.length) {
+            nanos = Arrays.copyOf(nanos, count + other.count);
+        }
+        System.arraycopy(other.nanos, 0, nanos, count, other.count);
+        count += other.count;
+        errors += other.errors;
+        shed += other.shed;
+    }
+
+    int count() {
+        return count;
+    }
+
+    long errors() {
+        return errors;
+    }
+
+    long shed() {
+        return shed;
+    }
+
+    /**
+     * Nearest-rank percentiles in milliseconds, for quantiles between 0 and 1.
+     */
+    double[] percentilesMillis(double... quantiles) {
+        long[] sorted = Arrays.copyOf(nanos, count);
+        Arrays.sort(sorted);
+        double[] millis = new double[quantiles.length];
+        for (int i = 0; i < quantiles.length && count > 0; i++) {
+            int rank = (int) Math.ceil(quantiles[i] * count);
+            millis[i] = sorted[Math.max(0, Math.min(count, rank) - 1)] / 1_000_000d;
+        }
+        return millis;
+    }
+}
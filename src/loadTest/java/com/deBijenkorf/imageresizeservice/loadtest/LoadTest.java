@@ -0,0 +1,329 @@
+package com.deBijenkorf.imageresizeservice.loadtest;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.deBijenkorf.imageresizeservice.ImageResizeServiceApplication;
+import com.deBijenkorf.imageresizeservice.model.PredefineTypeName;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.convert.DurationStyle;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.support.GenericApplicationContext;
+import org.springframework.core.env.MapPropertySource;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * End-to-end load test: boots the service on a random port against {@link InMemoryAmazonS3} and a
+ * {@link SourceStub}, then drives it over HTTP with a fixed number of closed-loop clients and reports
+ * requests/s and p50/p99/p99.9 latency per workload and request kind.
+ * <p>
+ * Options are {@code --name=value} arguments; any other argument is passed on to the service, e.g.
+ * {@code --image.render-all-variants=true}. Run with {@code ./gradlew loadTest -PloadTestArgs="..."}.
+ * <p>
+ * {@code --virtual-threads} takes a comma-separated list of modes, e.g. {@code false,true}; the service is booted
+ * once per mode against a fresh S3 and the requests/s of every workload are compared at the end.
+ */
+public class LoadTest {
+
+    private static final String[] TYPES = {
+            PredefineTypeName.THUMBNAIL.getValue(), PredefineTypeName.DETAIL_LARGE.getValue()};
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+
+    private final Map<String, String> options = new LinkedHashMap<>(Map.of(
+            "workloads", "hit-heavy,miss-heavy,flush-mixed",
+            "duration", "30s",
+            "warmup", "5s",
+            "concurrency", "32",
+            "hot-set", "200",
+            "s3-latency", "20ms",
+            "source-latency", "50ms",
+            "original-size", "1600x1200",
+            "virtual-threads", "false"));
+    private final List<String> serviceArguments = new ArrayList<>();
+    private final HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(5))
+            .build();
+    private final AtomicLong missSequence = new AtomicLong();
+    private String baseUrl;
+
+    public static void main(String[] args) throws Exception {
+        new LoadTest(args).run();
+    }
+
+    private LoadTest(String[] args) {
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            String name = arg.startsWith("--") && separator > 2 ? arg.substring(2, separator) : null;
+            if (name != null && options.containsKey(name)) {
+                options.put(name, arg.substring(separator + 1));
+            } else {
+                serviceArguments.add(arg);
+            }
+        }
+    }
+
+    private void run() throws Exception {
+        String[] modes = options.get("virtual-threads").split(",");
+        Map<String, Map<String, Double>> throughput = new LinkedHashMap<>();
+        long errors = 0;
+        try (SourceStub source = SourceStub.start(duration("source-latency"), options.get("original-size"))) {
+            System.out.printf("Options %s, original of %d bytes%n", options, source.originalSize());
+            for (String mode : modes) {
+                Map<String, Double> requestsPerSecond = new LinkedHashMap<>();
+                errors += runService(mode.trim(), source, requestsPerSecond);
+                throughput.put(mode.trim(), requestsPerSecond);
+            }
+        }
+        if (modes.length > 1) {
+            printComparison(throughput);
+        }
+        if (errors > 0) {
+            throw new IllegalStateException(errors + " requests failed, the results do not measure the service");
+        }
+    }
+
+    /**
+     * @return the number of failed requests, 503s excluded
+     */
+    private long runService(String virtualThreads, SourceStub source, Map<String, Double> requestsPerSecond)
+            throws Exception {
+        InMemoryAmazonS3 amazonS3 = new InMemoryAmazonS3(duration("s3-latency"));
+        // Ahead of every other property source, application.properties would otherwise win over the stubs
+        Map<String, Object> harnessProperties = Map.of(
+                "server.port", "0",
+                "source-root-url", source.rootUrl(),
+                "image.threads.virtual", virtualThreads,
+                "logging.level.com.deBijenkorf", "WARN");
+        ConfigurableApplicationContext service = new SpringApplicationBuilder(ImageResizeServiceApplication.class)
+                .initializers(context -> {
+                    context.getEnvironment().getPropertySources()
+                            .addFirst(new MapPropertySource("loadTest", harnessProperties));
+                    ((GenericApplicationContext) context).registerBean("inMemoryAmazonS3", AmazonS3.class,
+                            () -> amazonS3, definition -> definition.setPrimary(true));
+                })
+                .run(serviceArguments.toArray(String[]::new));
+        long errors = 0;
+        try {
+            baseUrl = "http://localhost:" + service.getEnvironment().getProperty("local.server.port");
+            System.out.printf("%nVirtual threads: %s%n", virtualThreads);
+            for (String name : options.get("workloads").split(",")) {
+                Workload workload = Workload.of(name.trim());
+                LatencyRecorder all = runWorkload(workload, amazonS3, source);
+                requestsPerSecond.put(workload.label, all.count() / (duration("duration").toMillis() / 1000d));
+                errors += all.errors();
+            }
+        } finally {
+            SpringApplication.exit(service);
+        }
+        return errors;
+    }
+
+    // Requests/s of every workload, one column per virtual-threads mode
+    private void printComparison(Map<String, Map<String, Double>> throughput) {
+        System.out.printf("%nRequests/s by virtual-threads mode%n  %-12s", "workload");
+        throughput.keySet().forEach(mode -> System.out.printf(" %10s", mode));
+        System.out.println();
+        for (String workload : throughput.values().iterator().next().keySet()) {
+            System.out.printf("  %-12s", workload);
+            throughput.values().forEach(requestsPerSecond ->
+                    System.out.printf(" %10.1f", requestsPerSecond.get(workload)));
+            System.out.println();
+        }
+    }
+
+    /**
+     * @return the latencies of every request of the measured run
+     */
+    private LatencyRecorder runWorkload(Workload workload, InMemoryAmazonS3 amazonS3, SourceStub source)
+            throws Exception {
+        int hotSet = Integer.parseInt(options.get("hot-set"));
+        int concurrency = Integer.parseInt(options.get("concurrency"));
+        prime(hotSet, concurrency);
+        drive(workload, hotSet, concurrency, duration("warmup"));
+
+        long s3Calls = amazonS3.calls();
+        long downloads = source.downloads();
+        Duration duration = duration("duration");
+        Map<String, LatencyRecorder> recorders = drive(workload, hotSet, concurrency, duration);
+        System.out.printf("%n%s: %d clients for %s, %d S3 calls, %d source downloads, %d stored objects%n",
+                workload.label, concurrency, duration, amazonS3.calls() - s3Calls, source.downloads() - downloads,
+                amazonS3.size());
+        System.out.printf("  %-6s %10s %10s %8s %8s %10s %10s %10s%n",
+                "kind", "requests", "req/s", "errors", "503s", "p50 ms", "p99 ms", "p99.9 ms");
+        recorders.forEach((kind, recorder) -> {
+            double[] millis = recorder.percentilesMillis(QUANTILES);
+            System.out.printf("  %-6s %10d %10.1f %8d %8d %10.2f %10.2f %10.2f%n", kind, recorder.count(),
+                    recorder.count() / (duration.toMillis() / 1000d), recorder.errors(), recorder.shed(),
+                    millis[0], millis[1], millis[2]);
+        });
+        LatencyRecorder all = recorders.getOrDefault("all", new LatencyRecorder());
+        if (all.errors() > 0) {
+            System.out.printf("  WARNING: %d of %d requests failed%n", all.errors(), all.count());
+        }
+        return all;
+    }
+
+    // Renders every variant of the hot set once, so that hits are served from the cache or S3
+    private void prime(int hotSet, int concurrency) throws Exception {
+        ExecutorService clients = Executors.newFixedThreadPool(concurrency);
+        try {
+            List<Future<Integer>> primed = new ArrayList<>();
+            for (int i = 0; i < hotSet; i++) {
+                for (String type : TYPES) {
+                    HttpRequest request = show(type, hotReference(i));
+                    primed.add(clients.submit(() -> send(request)));
+                }
+            }
+            int failed = 0;
+            for (Future<Integer> future : primed) {
+                if (future.get() != 200) {
+                    failed++;
+                }
+            }
+            if (failed > 0) {
+                throw new IllegalStateException(failed + " of " + primed.size()
+                        + " variants of the hot set could not be rendered, check the stubs and the service arguments");
+            }
+        } finally {
+            clients.shutdownNow();
+        }
+    }
+
+    private Map<String, LatencyRecorder> drive(Workload workload, int hotSet, int concurrency, Duration duration)
+            throws Exception {
+        long deadline = System.nanoTime() + duration.toNanos();
+        ExecutorService clients = Executors.newFixedThreadPool(concurrency);
+        List<Future<Map<String, LatencyRecorder>>> results = new ArrayList<>();
+        try {
+            for (int i = 0; i < concurrency; i++) {
+                results.add(clients.submit(() -> {
+                    Map<String, LatencyRecorder> recorders = new LinkedHashMap<>();
+                    while (System.nanoTime() < deadline) {
+                        Request request = workload.next(this, hotSet, ThreadLocalRandom.current());
+                        long start = System.nanoTime();
+                        int status = send(request.httpRequest);
+                        long elapsed = System.nanoTime() - start;
+                        recorders.computeIfAbsent("all", kind -> new LatencyRecorder()).record(elapsed, status);
+                        recorders.computeIfAbsent(request.kind, kind -> new LatencyRecorder()).record(elapsed, status);
+                    }
+                    return recorders;
+                }));
+            }
+            Map<String, LatencyRecorder> merged = new LinkedHashMap<>();
+            for (Future<Map<String, LatencyRecorder>> result : results) {
+                result.get().forEach((kind, recorder) ->
+                        merged.computeIfAbsent(kind, k -> new LatencyRecorder()).merge(recorder));
+            }
+            return merged;
+        } finally {
+            clients.shutdownNow();
+        }
+    }
+
+    private int send(HttpRequest request) {
+        try {
+            return client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+        } catch (IOException e) {
+            return -1;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1;
+        }
+    }
+
+    Request hit(int hotSet, ThreadLocalRandom random) {
+        return new Request("hit", show(randomType(random), hotReference(random.nextInt(hotSet))));
+    }
+
+    Request miss(ThreadLocalRandom random) {
+        return new Request("miss", show(randomType(random), "miss-" + missSequence.incrementAndGet() + ".jpg"));
+    }
+
+    // One flush in ten removes the original and every variant, the others a single variant
+    Request flush(int hotSet, ThreadLocalRandom random) {
+        String type = random.nextInt(10) == 0 ? "original" : randomType(random);
+        URI uri = URI.create(baseUrl + "/image/flush/" + type + "/?reference=" + hotReference(random.nextInt(hotSet)));
+        return new Request("flush", HttpRequest.newBuilder(uri).timeout(Duration.ofSeconds(30)).DELETE().build());
+    }
+
+    private HttpRequest show(String type, String reference) {
+        URI uri = URI.create(baseUrl + "/image/show/" + type + "/?reference=" + reference);
+        return HttpRequest.newBuilder(uri).timeout(Duration.ofSeconds(30)).GET().build();
+    }
+
+    private static String randomType(ThreadLocalRandom random) {
+        return TYPES[random.nextInt(TYPES.length)];
+    }
+
+    private static String hotReference(int index) {
+        return String.format("hot-%05d.jpg", index);
+    }
+
+    private Duration duration(String name) {
+        return DurationStyle.detectAndParse(options.get(name));
+    }
+
+    record Request(String kind, HttpRequest httpRequest) {
+    }
+
+    enum Workload {
+        // Mostly repeated requests for rendered variants, as in steady-state production traffic
+        HIT_HEAVY("hit-heavy") {
+            @Override
+            Request next(LoadTest loadTest, int hotSet, ThreadLocalRandom random) {
+                return random.nextInt(100) < 95 ? loadTest.hit(hotSet, random) : loadTest.miss(random);
+            }
+        },
+        // Every request is a reference never seen before: download, decode, resize and upload
+        MISS_HEAVY("miss-heavy") {
+            @Override
+            Request next(LoadTest loadTest, int hotSet, ThreadLocalRandom random) {
+                return loadTest.miss(random);
+            }
+        },
+        // Hits interleaved with flushes of the same hot set, which turn later hits into re-renders
+        FLUSH_MIXED("flush-mixed") {
+            @Override
+            Request next(LoadTest loadTest, int hotSet, ThreadLocalRandom random) {
+                int draw = random.nextInt(100);
+                if (draw < 80) {
+                    return loadTest.hit(hotSet, random);
+                }
+                return draw < 90 ? loadTest.miss(random) : loadTest.flush(hotSet, random);
+            }
+        };
+
+        private final String label;
+
+        Workload(String label) {
+            this.label = label;
+        }
+
+        abstract Request next(LoadTest loadTest, int hotSet, ThreadLocalRandom random);
+
+        static Workload of(String name) {
+            for (Workload workload : values()) {
+                if (workload.label.equals(name)) {
+                    return workload;
+                }
+            }
+            throw new IllegalArgumentException(
+                    "Unknown workload " + name + ", expected hit-heavy, miss-heavy or flush-mixed");
+        }
+    }
+}
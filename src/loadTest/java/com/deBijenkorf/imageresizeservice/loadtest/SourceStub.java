@@ -0,0 +1,105 @@
+package com.deBijenkorf.imageresizeservice.loadtest;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local stand-in for the source site behind {@code source-root-url}. Answers every path with the same generated
+ * JPEG original after a fixed latency, so that a miss costs a download, a decode and a resize like in production.
+ */
+public class SourceStub implements AutoCloseable {
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final byte[] original;
+    private final Duration latency;
+    private final AtomicLong downloads = new AtomicLong();
+
+    private SourceStub(HttpServer server, ExecutorService executor, byte[] original, Duration latency) {
+        this.server = server;
+        this.executor = executor;
+        this.original = original;
+        this.latency = latency;
+    }
+
+    public static SourceStub start(Duration latency, String originalSize) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        ExecutorService executor = Executors.newCachedThreadPool();
+        SourceStub sourceStub = new SourceStub(server, executor, original(originalSize), latency);
+        server.createContext("/", sourceStub::handle);
+        server.setExecutor(executor);
+        server.start();
+        return sourceStub;
+    }
+
+    public String rootUrl() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/";
+    }
+
+    public long downloads() {
+        return downloads.get();
+    }
+
+    public int originalSize() {
+        return original.length;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            downloads.incrementAndGet();
+            if (!latency.isZero()) {
+                Thread.sleep(latency.toMillis());
+            }
+            exchange.getResponseHeaders().set("Content-Type", "image/jpeg");
+            exchange.sendResponseHeaders(200, original.length);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(original);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    // A product-photo-like original: a gradient with sharp shapes, so that decoding and resampling do real work
+    private static byte[] original(String size) throws IOException {
+        String[] dimensions = size.split("x");
+        int width = Integer.parseInt(dimensions[0]);
+        int height = Integer.parseInt(dimensions[1]);
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setPaint(new GradientPaint(0, 0, new Color(0xf2e6d9), width, height, new Color(0x2b4162)));
+        graphics.fillRect(0, 0, width, height);
+        Random random = new Random(42);
+        for (int i = 0; i < 200; i++) {
+            graphics.setColor(new Color(random.nextInt(0xffffff)));
+            graphics.fillOval(random.nextInt(width), random.nextInt(height),
+                    1 + random.nextInt(Math.max(1, width / 8)), 1 + random.nextInt(Math.max(1, height / 8)));
+        }
+        graphics.dispose();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpg", output);
+        return output.toByteArray();
+    }
+}
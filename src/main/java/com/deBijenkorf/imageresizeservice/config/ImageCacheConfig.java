@@ -0,0 +1,22 @@
+package com.deBijenkorf.imageresizeservice.config;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+@Component
+@AllArgsConstructor
+@NoArgsConstructor
+@Data
+@ConfigurationProperties(value = "image.cache")
+public class ImageCacheConfig {
+
+    private DataSize maximumSize = DataSize.ofMegabytes(64);
+
+    // Stored variants above this size are streamed from S3 to the client instead of being buffered and cached
+    private DataSize maximumEntrySize = DataSize.ofMegabytes(1);
+
+}
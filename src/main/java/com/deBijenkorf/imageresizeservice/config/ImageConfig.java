@@ -1,6 +1,7 @@
 package com.deBijenkorf.imageresizeservice.config;
 
 import com.deBijenkorf.imageresizeservice.model.ImageType;
+import com.deBijenkorf.imageresizeservice.model.ResamplingType;
 import com.deBijenkorf.imageresizeservice.model.ScaleType;
 import lombok.AllArgsConstructor;
 import lombok.Data;
@@ -28,4 +29,6 @@ public class ImageConfig {
 
     private ImageType type;
 
+    private ResamplingType resampling = ResamplingType.Java2D;
+
 }
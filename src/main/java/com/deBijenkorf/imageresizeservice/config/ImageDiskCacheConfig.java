@@ -0,0 +1,27 @@
+package com.deBijenkorf.imageresizeservice.config;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+@Component
+@AllArgsConstructor
+@NoArgsConstructor
+@Data
+@ConfigurationProperties(value = "image.disk-cache")
+public class ImageDiskCacheConfig {
+
+    private boolean enabled;
+
+    // Directory holding the segment files, reused across restarts
+    private String directory = "image-cache";
+
+    // Total size of the segment files, the oldest segment is deleted once it is exceeded
+    private DataSize maximumSize = DataSize.ofGigabytes(10);
+
+    private DataSize segmentSize = DataSize.ofMegabytes(64);
+
+}
@@ -0,0 +1,30 @@
+package com.deBijenkorf.imageresizeservice.config;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+@Component
+@AllArgsConstructor
+@NoArgsConstructor
+@Data
+@ConfigurationProperties(value = "image.existence")
+public class ImageExistenceConfig {
+
+    // How long an object found missing in S3 is not looked up again
+    private Duration negativeTtl = Duration.ofSeconds(30);
+
+    private Long negativeMaximumSize = 100_000L;
+
+    // Seed a Bloom filter of the stored objects at startup, only exact when this instance is the only writer
+    private boolean bloomFilter;
+
+    private Long expectedObjects = 1_000_000L;
+
+    private Double falsePositiveRate = 0.01;
+
+}
@@ -0,0 +1,30 @@
+package com.deBijenkorf.imageresizeservice.config;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.http.CacheControl;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+@Component
+@AllArgsConstructor
+@NoArgsConstructor
+@Data
+@ConfigurationProperties(value = "image.http-cache")
+public class ImageHttpCacheConfig {
+
+    private Duration defaultMaxAge = Duration.ofDays(1);
+
+    // Cache-Control max-age per predefined type name
+    private Map<String, Duration> maxAge = new HashMap<>();
+
+    public CacheControl cacheControl(String predefinedTypeName) {
+        return CacheControl.maxAge(maxAge.getOrDefault(predefinedTypeName, defaultMaxAge)).cachePublic();
+    }
+
+}
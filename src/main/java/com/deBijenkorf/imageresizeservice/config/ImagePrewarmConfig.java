@@ -0,0 +1,32 @@
+package com.deBijenkorf.imageresizeservice.config;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@Component
+@AllArgsConstructor
+@NoArgsConstructor
+@Data
+@ConfigurationProperties(value = "image.prewarm")
+public class ImagePrewarmConfig {
+
+    // File with one original image reference per line, pre-warming runs at startup when it is set
+    private String manifest;
+
+    // Predefined types to render, empty renders all of them
+    private List<String> types = new ArrayList<>();
+
+    private Integer concurrency = 4;
+
+    // Completed references between two writes of the checkpoint file
+    private Integer checkpointInterval = 100;
+
+    private boolean exitWhenDone = true;
+
+}
@@ -0,0 +1,40 @@
+package com.deBijenkorf.imageresizeservice.config;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+@Component
+@AllArgsConstructor
+@NoArgsConstructor
+@Data
+@ConfigurationProperties(value = "image.resize")
+public class ImageResizeExecutorConfig {
+
+    // 0 sizes the pool to the available cores
+    private Integer threads = 0;
+
+    private Integer queueCapacity = 100;
+
+    private Duration retryAfter = Duration.ofSeconds(1);
+
+    // Decoded pixels above which cropping with the convolution engines resamples row bands in parallel, on a pool
+    // of as many threads as the resize pool
+    private Long parallelThreshold = 1_000_000L;
+
+    // Reuse per-thread pixel buffers for the canvas and the working images of the convolution engines
+    private Boolean pooledBuffers = true;
+
+    // Largest pooled buffer in pixels, larger ones are allocated per resize. Every thread that resizes keeps up to
+    // three buffers of 4 bytes per pixel for its lifetime, 48 MB at most with the default
+    private Integer maximumPooledPixels = 2048 * 2048;
+
+    public int poolSize() {
+        return threads == null || threads <= 0 ? Runtime.getRuntime().availableProcessors() : threads;
+    }
+
+}
@@ -0,0 +1,34 @@
+package com.deBijenkorf.imageresizeservice.config;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+
+@Component
+@AllArgsConstructor
+@NoArgsConstructor
+@Data
+@ConfigurationProperties(value = "image.write-behind")
+public class ImageWriteBehindConfig {
+
+    private boolean enabled;
+
+    private Integer threads = 2;
+
+    private Integer queueCapacity = 1000;
+
+    // Bytes of the queued payloads above which uploads run on the caller instead, however few tasks are queued
+    private DataSize maximumQueuedSize = DataSize.ofMegabytes(64);
+
+    private Integer maxAttempts = 3;
+
+    private Duration retryBackoff = Duration.ofMillis(200);
+
+    private Duration shutdownTimeout = Duration.ofSeconds(30);
+
+}
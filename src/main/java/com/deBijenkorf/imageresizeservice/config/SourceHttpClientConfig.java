@@ -0,0 +1,31 @@
+package com.deBijenkorf.imageresizeservice.config;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+
+@Component
+@AllArgsConstructor
+@NoArgsConstructor
+@Data
+@ConfigurationProperties(value = "image.source")
+public class SourceHttpClientConfig {
+
+    private Duration connectTimeout = Duration.ofSeconds(2);
+
+    // Upper bound for the whole download, body included, and shared with the wait for a per-host slot
+    private Duration requestTimeout = Duration.ofSeconds(10);
+
+    private Integer maxConcurrentPerHost = 8;
+
+    // Downloaded originals kept with their validators, so a repeated download becomes a conditional GET
+    private DataSize validatorCacheSize = DataSize.ofMegabytes(16);
+
+    private Duration retryAfter = Duration.ofSeconds(1);
+
+}
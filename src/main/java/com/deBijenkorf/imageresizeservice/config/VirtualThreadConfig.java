@@ -0,0 +1,37 @@
+package com.deBijenkorf.imageresizeservice.config;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.embedded.tomcat.TomcatProtocolHandlerCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Opt-in ({@code image.threads.virtual=true}) execution model that serves every request on its own virtual
+ * thread, so the blocking Amazon S3 and source downloads park instead of holding a platform thread. Resizing keeps
+ * running on the bounded {@code ResizeExecutor} pool. Requires a Java 21 runtime.
+ */
+@Slf4j
+@Configuration
+@ConditionalOnProperty(value = "image.threads.virtual", havingValue = "true")
+public class VirtualThreadConfig {
+
+    @Bean
+    public TomcatProtocolHandlerCustomizer<?> virtualThreadProtocolHandlerCustomizer() {
+        ExecutorService executor = newVirtualThreadPerTaskExecutor();
+        log.info("Serving requests on virtual threads");
+        return protocolHandler -> protocolHandler.setExecutor(executor);
+    }
+
+    // Looked up reflectively so the service still compiles and runs on Java 17 when the mode is off
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("image.threads.virtual requires a Java 21 runtime", e);
+        }
+    }
+}
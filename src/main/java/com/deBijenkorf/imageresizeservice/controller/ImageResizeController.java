@@ -1,13 +1,24 @@
 package com.deBijenkorf.imageresizeservice.controller;
 
+import com.deBijenkorf.imageresizeservice.config.ImageHttpCacheConfig;
+import com.deBijenkorf.imageresizeservice.exception.ServiceOverloadedException;
+import com.deBijenkorf.imageresizeservice.model.ImageContent;
 import com.deBijenkorf.imageresizeservice.service.ImageResizeService;
+import com.deBijenkorf.imageresizeservice.util.ImageReferences;
 import lombok.AllArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.InputStreamResource;
+import org.springframework.core.io.Resource;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
-import static java.io.File.separator;
+import java.util.List;
+import java.util.stream.Collectors;
 
 @Slf4j
 @RestController
@@ -16,22 +27,35 @@ public class ImageResizeController {
 
     private final ImageResizeService imageResizeService;
 
-    @RequestMapping(method = RequestMethod.GET, value = "/image/show/{predefined-type-name}/{dummy-seo-name}/", produces = MediaType.IMAGE_JPEG_VALUE)
-    @ResponseBody
-    public byte[] showImage(@PathVariable("predefined-type-name") String predefinedTypeName,
-                            @PathVariable(value = "dummy-seo-name") String seoName,
-                            @RequestParam(value = "reference") String originalFilename) {
+    private final ImageHttpCacheConfig httpCacheConfig;
+
+    @RequestMapping(method = RequestMethod.GET, value = "/image/show/{predefined-type-name}/{dummy-seo-name}/", produces = {MediaType.IMAGE_JPEG_VALUE, MediaType.IMAGE_PNG_VALUE})
+    public ResponseEntity<Resource> showImage(@PathVariable("predefined-type-name") String predefinedTypeName,
+                                              @PathVariable(value = "dummy-seo-name") String seoName,
+                                              @RequestParam(value = "reference") String originalFilename,
+                                              @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
 
-        return imageResizeService.findResizedImage(predefinedTypeName, originalFilename.replaceAll(separator, "_"));
+        return showImage(predefinedTypeName, originalFilename, ifNoneMatch);
 
     }
 
-    @RequestMapping(method = RequestMethod.GET, value = "/image/show/{predefined-type-name}/", produces = MediaType.IMAGE_JPEG_VALUE)
-    @ResponseBody
-    public byte[] showImage(@PathVariable("predefined-type-name") String predefinedTypeName,
-                            @RequestParam(value = "reference") String originalFilename) {
+    @RequestMapping(method = RequestMethod.GET, value = "/image/show/{predefined-type-name}/", produces = {MediaType.IMAGE_JPEG_VALUE, MediaType.IMAGE_PNG_VALUE})
+    public ResponseEntity<Resource> showImage(@PathVariable("predefined-type-name") String predefinedTypeName,
+                                              @RequestParam(value = "reference") String originalFilename,
+                                              @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
 
-        return imageResizeService.findResizedImage(predefinedTypeName, originalFilename.replaceAll(separator, "_"));
+        final String reference = ImageReferences.normalize(originalFilename);
+        CacheControl cacheControl = httpCacheConfig.cacheControl(predefinedTypeName);
+        if (ifNoneMatch != null) {
+            String etag = imageResizeService.findETag(predefinedTypeName, reference);
+            if (etag != null && matches(ifNoneMatch, etag)) {
+                return ResponseEntity.status(HttpStatus.NOT_MODIFIED)
+                        .eTag(etag)
+                        .cacheControl(cacheControl)
+                        .build();
+            }
+        }
+        return toResponse(imageResizeService.findResizedImage(predefinedTypeName, reference), cacheControl);
 
     }
 
@@ -40,7 +64,61 @@ public class ImageResizeController {
     @ResponseStatus(HttpStatus.NO_CONTENT)
     public void removeImage(@PathVariable("predefined-image-type") String predefinedTypeName,
                             @RequestParam(value = "reference") String originalFilename) {
-        imageResizeService.flush(predefinedTypeName, originalFilename.replaceAll(separator, "_"));
+        imageResizeService.flush(predefinedTypeName, ImageReferences.normalize(originalFilename));
+    }
+
+    @PostMapping(value = "/image/flush/{predefined-image-type}/bulk", consumes = MediaType.APPLICATION_JSON_VALUE)
+    @ResponseStatus(HttpStatus.NO_CONTENT)
+    public void removeImages(@PathVariable("predefined-image-type") String predefinedTypeName,
+                             @RequestBody List<String> originalFilenames) {
+        imageResizeService.flush(predefinedTypeName, originalFilenames.stream()
+                .map(originalFilename -> ImageReferences.normalize(originalFilename))
+                .collect(Collectors.toList()));
+    }
+
+    @ExceptionHandler(ServiceOverloadedException.class)
+    public ResponseEntity<Void> serviceOverloaded(ServiceOverloadedException e) {
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfter().toSeconds()))
+                .build();
+    }
+
+    /**
+     * Writes the payload without copying it: buffered content is shared with the cache, large stored variants
+     * are piped from the Amazon S3 object stream, which the converter closes after writing.
+     */
+    private ResponseEntity<Resource> toResponse(ImageContent imageContent, CacheControl cacheControl) {
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType(imageContent.getContentType()))
+                .contentLength(imageContent.getContentLength())
+                .cacheControl(cacheControl);
+        if (imageContent.getEtag() != null) {
+            response.eTag(imageContent.getEtag());
+        }
+        if (imageContent.getLastModified() != null) {
+            response.lastModified(imageContent.getLastModified());
+        }
+        return response.body(imageContent.isStreamed()
+                ? new InputStreamResource(imageContent.getStream())
+                : new ByteArrayResource(imageContent.getContent()));
+    }
+
+    // If-None-Match uses the weak comparison, so W/ prefixes are ignored on both sides
+    private static boolean matches(String ifNoneMatch, String etag) {
+        final String opaqueTag = stripWeak(etag);
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = stripWeak(candidate.trim());
+            if ("*".equals(tag) || opaqueTag.equals(tag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String stripWeak(String tag) {
+        String opaqueTag = tag.startsWith("W/") ? tag.substring(2) : tag;
+        return opaqueTag.length() > 1 && opaqueTag.startsWith("\"") && opaqueTag.endsWith("\"")
+                ? opaqueTag.substring(1, opaqueTag.length() - 1) : opaqueTag;
     }
 
 }
@@ -0,0 +1,75 @@
+package com.deBijenkorf.imageresizeservice.dao;
+
+import com.deBijenkorf.imageresizeservice.config.ImageCacheConfig;
+import com.deBijenkorf.imageresizeservice.model.ImageContent;
+import com.deBijenkorf.imageresizeservice.model.PredefineTypeName;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+/**
+ * In-process cache of encoded variants in front of Amazon S3, keyed by predefined type and reference and bounded
+ * by the total byte size of the cached payloads. Hit, miss and eviction counters are published as
+ * {@code cache.*} meters tagged with {@code cache=image.variants}.
+ */
+@Slf4j
+@Component
+public class ImageCache {
+
+    public static final String CACHE_NAME = "image.variants";
+
+    private final Cache<String, ImageContent> cache;
+
+    public ImageCache(ImageCacheConfig imageCacheConfig, MeterRegistry meterRegistry) {
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(imageCacheConfig.getMaximumSize().toBytes())
+                .weigher((String key, ImageContent value) -> key.length() + value.getContent().length)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, CACHE_NAME);
+    }
+
+    public ImageContent get(String typeName, String fileName) {
+        return cache.getIfPresent(key(typeName, fileName));
+    }
+
+    public void put(String typeName, String fileName, ImageContent imageContent) {
+        cache.put(key(typeName, fileName), imageContent);
+    }
+
+    public void invalidate(String typeName, String fileName) {
+        cache.invalidate(key(typeName, fileName));
+    }
+
+    /**
+     * Drops every predefined variant of the given reference, used when its original is flushed.
+     */
+    public void invalidateVariants(String fileName) {
+        for (PredefineTypeName typeName : PredefineTypeName.values()) {
+            invalidate(typeName.getValue(), fileName);
+        }
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    /**
+     * Runs pending maintenance, such as size-based evictions, so the counters reflect the current state.
+     */
+    public void cleanUp() {
+        cache.cleanUp();
+    }
+
+    public CacheStats stats() {
+        return cache.stats();
+    }
+
+    private String key(String typeName, String fileName) {
+        return typeName + '/' + fileName;
+    }
+}
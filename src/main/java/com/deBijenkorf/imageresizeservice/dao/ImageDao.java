@@ -1,22 +1,36 @@
 package com.deBijenkorf.imageresizeservice.dao;
 
-import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.model.*;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest.KeyVersion;
+import com.deBijenkorf.imageresizeservice.config.ImageCacheConfig;
 import com.deBijenkorf.imageresizeservice.exception.NoResourceFoundException;
-import com.deBijenkorf.imageresizeservice.util.ImageUtil;
-import io.micrometer.common.util.StringUtils;
+import com.deBijenkorf.imageresizeservice.model.ImageContent;
+import com.deBijenkorf.imageresizeservice.model.ImageType;
+import com.deBijenkorf.imageresizeservice.model.PredefineTypeName;
+import com.deBijenkorf.imageresizeservice.util.ImagePipelineMetrics;
+import io.micrometer.core.instrument.Timer;
 import lombok.AllArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Repository;
 
-import java.awt.image.BufferedImage;
-import java.io.File;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.nio.file.Files;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.function.BiConsumer;
 
+import static com.deBijenkorf.imageresizeservice.util.ImagePipelineMetrics.OUTCOME;
+import static com.deBijenkorf.imageresizeservice.util.ImagePipelineMetrics.TYPE;
 import static java.io.File.separator;
 
 @Slf4j
@@ -25,67 +39,225 @@ import static java.io.File.separator;
 public class ImageDao {
 
     public static final String ORIGINAL = "original";
+    // Upper bound of the S3 multi-object delete API
+    private static final int MAX_KEYS_PER_DELETE = 1000;
     private final AmazonS3 amazonS3;
-    private final ImageUtil imageUtil;
+    private final ImageExistenceIndex existenceIndex;
+    private final ImageCacheConfig imageCacheConfig;
+    private final ImagePipelineMetrics metrics;
 
-    public BufferedImage findByName(String typeName, String fileName) throws IOException {
+    public ImageContent findByName(String typeName, String fileName) {
         if (amazonS3 == null) {
             log.error("Fail to connect to Amazon S3");
             throw new NoResourceFoundException("Fail to connect to Amazon S3");
         }
-        fileName = fileName.replaceAll(separator, "_");
-        log.info("Downloading file with name {}", fileName);
+        final String key = fileName.replaceAll(separator, "_");
+        final String type = typeName == null ? ORIGINAL : typeName;
+        Timer.Sample download = metrics.start();
+        String outcome = "failure";
+        try {
+            if (existenceIndex.isKnownMissing(typeName, key)) {
+                // Answered without a request, but still a miss of the lookup
+                outcome = "miss";
+                return null;
+            }
+            log.info("Downloading file with name {}", key);
+
+            ImageContent imageContent;
+            try {
+                imageContent = Optional.ofNullable(amazonS3.getObject(getS3BucketName(key, typeName), key))
+                        .map(s3Object -> getImageContent(s3Object, typeName, key))
+                        .orElse(null);
+            } catch (AmazonS3Exception e) {
+                if (e.getStatusCode() != HttpStatus.NOT_FOUND.value()) {
+                    throw e;
+                }
+                imageContent = null;
+            }
+            outcome = imageContent == null ? "miss" : "hit";
+            if (imageContent == null) {
+                existenceIndex.markMissing(typeName, key);
+            } else if (ORIGINAL.equals(type)) {
+                metrics.recordSize("image.original.size", imageContent.getContentLength(), "source", "s3");
+            }
+            return imageContent;
+        } finally {
+            metrics.stop(download, "image.s3.get", TYPE, type, OUTCOME, outcome);
+        }
+    }
 
-        return Optional.ofNullable(amazonS3.getObject(getS3BucketName(fileName, typeName), fileName))
-                .map(S3Object::getObjectContent)
-                .map(this::getBufferedImage)
-                .orElse(null);
+    public boolean exists(String typeName, String fileName) {
+        final String key = fileName.replaceAll(separator, "_");
+        if (existenceIndex.isKnownMissing(typeName, key)) {
+            return false;
+        }
+        boolean exists = amazonS3.doesObjectExist(getS3BucketName(key, typeName), key);
+        if (!exists) {
+            existenceIndex.markMissing(typeName, key);
+        }
+        return exists;
     }
 
-    private BufferedImage getBufferedImage(S3ObjectInputStream s3ObjectInputStream) {
+    /**
+     * Reads the ETag of a stored object with a HEAD request, without transferring its content.
+     *
+     * @return the ETag, or null when the object does not exist
+     */
+    public String findETag(String typeName, String fileName) {
+        final String key = fileName.replaceAll(separator, "_");
+        if (existenceIndex.isKnownMissing(typeName, key)) {
+            return null;
+        }
         try {
-            return imageUtil.bufferedImage(s3ObjectInputStream);
+            return Optional.ofNullable(amazonS3.getObjectMetadata(getS3BucketName(key, typeName), key))
+                    .map(ObjectMetadata::getETag)
+                    .orElse(null);
+        } catch (AmazonS3Exception e) {
+            if (e.getStatusCode() == HttpStatus.NOT_FOUND.value()) {
+                existenceIndex.markMissing(typeName, key);
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    private ImageContent getImageContent(S3Object s3Object, String typeName, String fileName) {
+        Optional<ObjectMetadata> metadata = Optional.ofNullable(s3Object.getObjectMetadata());
+        String contentType = metadata.map(ObjectMetadata::getContentType)
+                .orElseGet(() -> ImageType.fromExtension(getFileExtension(fileName)).getMediaType());
+        String etag = metadata.map(ObjectMetadata::getETag).orElse(null);
+        long contentLength = metadata.map(ObjectMetadata::getContentLength).orElse(0L);
+        S3ObjectInputStream s3ObjectInputStream = s3Object.getObjectContent();
+        if (typeName != null && !ORIGINAL.equals(typeName)
+                && contentLength > imageCacheConfig.getMaximumEntrySize().toBytes()) {
+            // Closed by the response once the body is written. Without Last-Modified only the ETag, checked
+            // before the download, can turn the response into a 304 that would leave the stream unread.
+            return ImageContent.streamed(s3ObjectInputStream, contentLength, contentType, etag);
+        }
+        try (s3ObjectInputStream) {
+            byte[] content = contentLength > 0 ? readFully(s3ObjectInputStream, contentLength)
+                    : s3ObjectInputStream.readAllBytes();
+            return new ImageContent(content, contentType, etag,
+                    metadata.map(ObjectMetadata::getLastModified).map(Date::toInstant).orElse(null));
         } catch (IOException ex) {
             log.error("fail to load image from S3", ex);
             throw new NoResourceFoundException("fail to load image from S3");
         }
     }
 
-    public void save(BufferedImage bufferedImage, String fileName, String typeName) {
+    // Reads into one array of the advertised length instead of growing and trimming buffers
+    private static byte[] readFully(InputStream inputStream, long contentLength) throws IOException {
+        byte[] content = new byte[Math.toIntExact(contentLength)];
+        int read = inputStream.readNBytes(content, 0, content.length);
+        if (read != content.length) {
+            throw new IOException("Expected " + content.length + " bytes but the stream ended after " + read);
+        }
+        return content;
+    }
+
+    public void save(ImageContent imageContent, String fileName, String typeName) {
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(imageContent.getContent().length);
+        metadata.setContentType(imageContent.getContentType());
+        PutObjectRequest putObjectRequest = new PutObjectRequest(getS3BucketName(fileName, typeName), fileName,
+                new ByteArrayInputStream(imageContent.getContent()), metadata);
+        Timer.Sample upload = metrics.start();
         try {
-            File file = new File(fileName);
-            imageUtil.writeImage(bufferedImage, getFileExtension(fileName), file);
-            PutObjectRequest putObjectRequest = new PutObjectRequest(getS3BucketName(fileName, typeName), fileName, file);
             amazonS3.putObject(putObjectRequest);
-            Files.delete(file.toPath()); // Remove the file locally created in the project folder
-        } catch (AmazonServiceException e) {
-            log.error("Error {} occurred while uploading file", e.getLocalizedMessage());
-        } catch (IOException ex) {
-            log.error("Error {} occurred while deleting temporary file", ex.getLocalizedMessage());
+        } catch (RuntimeException e) {
+            metrics.stop(upload, "image.s3.put", TYPE, typeName, OUTCOME, "failure");
+            throw e;
         }
+        metrics.stop(upload, "image.s3.put", TYPE, typeName, OUTCOME, "success");
+        existenceIndex.markPresent(typeName, fileName);
     }
 
     public void deleteObject(String fileName, String typeName) {
-        final String s3BucketName = getS3BucketName(fileName, typeName);
-        if (StringUtils.isNotBlank(s3BucketName) && !s3BucketName.contains(ORIGINAL)) {
-            amazonS3.deleteObject(s3BucketName, fileName);
+        if (typeName == null || ORIGINAL.equals(typeName)) {
+            deleteObjects(List.of(fileName), ORIGINAL);
         } else {
-            deleteAllFilesInS3Buckets(fileName);
+            amazonS3.deleteObject(getS3BucketName(fileName, typeName), fileName);
+            existenceIndex.markMissing(typeName, fileName);
         }
     }
 
-    private void deleteAllFilesInS3Buckets(String fileName) {
-        List<Bucket> buckets = amazonS3.listBuckets();
-        for (Bucket bucket : buckets) {
-            String bucketName = bucket.getName();
-            ListObjectsV2Result result = amazonS3.listObjectsV2(bucketName);
-            List<S3ObjectSummary> objects = result.getObjectSummaries();
-            for (S3ObjectSummary object : objects) {
-                if (object.getKey().equals(fileName)) {
-                    amazonS3.deleteObject(bucketName, fileName);
-                }
+    /**
+     * Deletes the given type of every file name, or the original and every predefined variant when the type is
+     * the original. The keys are computed the same way they are written, so no listing is needed, and they are
+     * removed with one multi-object delete per bucket.
+     */
+    public void deleteObjects(Collection<String> fileNames, String typeName) {
+        final List<String> typeNames = typeName == null || ORIGINAL.equals(typeName)
+                ? deletedWithOriginal()
+                : List.of(typeName);
+        final Map<String, List<KeyVersion>> keysByBucket = new LinkedHashMap<>();
+        for (String fileName : fileNames) {
+            for (String deletedTypeName : typeNames) {
+                keysByBucket.computeIfAbsent(getS3BucketName(fileName, deletedTypeName), bucket -> new ArrayList<>())
+                        .add(new KeyVersion(fileName));
+            }
+        }
+        keysByBucket.forEach(this::deleteKeys);
+        for (String fileName : fileNames) {
+            typeNames.forEach(deletedTypeName -> existenceIndex.markMissing(deletedTypeName, fileName));
+        }
+    }
+
+    /**
+     * Seeds the existence index in the background once the application is up, so that a large listing does not
+     * delay startup. Until the seeding completes the index only relies on its negative cache.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void seedExistenceIndex() {
+        if (!existenceIndex.isBloomFilterEnabled()) {
+            return;
+        }
+        Thread seeder = new Thread(() -> {
+            try {
+                existenceIndex.seed(this::listStoredObjects);
+            } catch (RuntimeException e) {
+                log.error("Fail to seed the image existence index, lookups keep going to Amazon S3", e);
+            }
+        }, "image-existence-seed");
+        seeder.setDaemon(true);
+        seeder.start();
+    }
+
+    /**
+     * Reports the type name and file name of every stored object, following the listing pages.
+     */
+    void listStoredObjects(BiConsumer<String, String> consumer) {
+        for (Bucket bucket : amazonS3.listBuckets()) {
+            final String[] segments = bucket.getName().split(separator);
+            if (segments.length < 3) {
+                continue;
             }
+            ListObjectsV2Request request = new ListObjectsV2Request().withBucketName(bucket.getName());
+            ListObjectsV2Result result;
+            do {
+                result = amazonS3.listObjectsV2(request);
+                for (S3ObjectSummary object : result.getObjectSummaries()) {
+                    consumer.accept(segments[1], object.getKey());
+                }
+                request.setContinuationToken(result.getNextContinuationToken());
+            } while (result.isTruncated());
+        }
+    }
+
+    private void deleteKeys(String bucketName, List<KeyVersion> keys) {
+        for (int from = 0; from < keys.size(); from += MAX_KEYS_PER_DELETE) {
+            List<KeyVersion> batch = keys.subList(from, Math.min(keys.size(), from + MAX_KEYS_PER_DELETE));
+            amazonS3.deleteObjects(new DeleteObjectsRequest(bucketName).withKeys(batch).withQuiet(true));
+        }
+    }
+
+    private static List<String> deletedWithOriginal() {
+        List<String> typeNames = new ArrayList<>();
+        typeNames.add(ORIGINAL);
+        for (PredefineTypeName predefineTypeName : PredefineTypeName.values()) {
+            typeNames.add(predefineTypeName.getValue());
         }
+        return typeNames;
     }
 
     private String getS3BucketName(String fileName, String typeName) {
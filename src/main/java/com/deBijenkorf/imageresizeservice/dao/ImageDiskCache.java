@@ -0,0 +1,427 @@
+package com.deBijenkorf.imageresizeservice.dao;
+
+import com.deBijenkorf.imageresizeservice.config.ImageCacheConfig;
+import com.deBijenkorf.imageresizeservice.config.ImageDiskCacheConfig;
+import com.deBijenkorf.imageresizeservice.model.ImageContent;
+import com.deBijenkorf.imageresizeservice.model.PredefineTypeName;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Local disk tier between the in-memory {@link ImageCache} and Amazon S3, enabled with
+ * {@code image.disk-cache.enabled}. Variants are appended to segment files of {@code image.disk-cache.segment-size}
+ * and located through an in-memory index, which is rebuilt from the segments at startup so the tier survives
+ * restarts. Flushes append a tombstone, so a flushed variant does not come back after a restart.
+ * <p>
+ * Once the segments exceed {@code image.disk-cache.maximum-size} the oldest one is deleted whole. Deleting oldest
+ * first guarantees that a tombstone never outlives the record it cancels; variants still read from the oldest
+ * segment are appended again, so that hot entries survive its eviction, which approximates LRU.
+ * <p>
+ * Variants up to {@code image.cache.maximum-entry-size} are read into one array with a positional read, larger
+ * ones are streamed from a read-only mapping of the segment.
+ */
+@Slf4j
+@Component
+public class ImageDiskCache {
+
+    private static final int MAGIC = 0x494d4731;
+    // magic, crc, kind, key, content type and etag lengths, last modified, payload length
+    private static final int HEADER_SIZE = 4 + 4 + 1 + 4 + 4 + 4 + 8 + 4;
+    private static final byte PUT = 1;
+    private static final byte TOMBSTONE = 2;
+    private static final String SEGMENT_SUFFIX = ".segment";
+
+    private final boolean enabled;
+    private final Path directory;
+    private final long maximumSize;
+    private final long segmentSize;
+    private final long maximumBufferedSize;
+    private final Map<String, Entry> index = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    private final AtomicLong totalSize = new AtomicLong();
+    private final Object writeLock = new Object();
+    private final Counter evictions;
+    private Segment activeSegment;
+
+    public ImageDiskCache(ImageDiskCacheConfig diskCacheConfig, ImageCacheConfig imageCacheConfig,
+                          MeterRegistry meterRegistry) {
+        this.enabled = diskCacheConfig.isEnabled();
+        this.directory = Paths.get(diskCacheConfig.getDirectory());
+        this.maximumSize = diskCacheConfig.getMaximumSize().toBytes();
+        this.segmentSize = diskCacheConfig.getSegmentSize().toBytes();
+        this.maximumBufferedSize = imageCacheConfig.getMaximumEntrySize().toBytes();
+        this.evictions = meterRegistry.counter("image.disk-cache.evictions");
+        if (enabled) {
+            Gauge.builder("image.disk-cache.size", totalSize, AtomicLong::get)
+                    .baseUnit("bytes")
+                    .register(meterRegistry);
+            Gauge.builder("image.disk-cache.entries", index, Map::size)
+                    .register(meterRegistry);
+            open();
+        }
+    }
+
+    public ImageContent get(String typeName, String fileName) {
+        if (!enabled) {
+            return null;
+        }
+        final String key = key(typeName, fileName);
+        Entry entry = index.get(key);
+        if (entry == null) {
+            return null;
+        }
+        try {
+            if (entry.length > maximumBufferedSize) {
+                ByteBuffer mapped = entry.segment.channel.map(FileChannel.MapMode.READ_ONLY, entry.offset,
+                        entry.length);
+                return ImageContent.streamed(new ByteBufferInputStream(mapped), entry.length, entry.contentType,
+                        entry.etag);
+            }
+            byte[] content = new byte[entry.length];
+            readFully(entry.segment.channel, ByteBuffer.wrap(content), entry.offset);
+            ImageContent imageContent = new ImageContent(content, entry.contentType, entry.etag, entry.lastModified);
+            if (isNextToEvict(entry.segment)) {
+                reappend(key, entry, imageContent);
+            }
+            return imageContent;
+        } catch (IOException e) {
+            // The segment was evicted while it was being read
+            log.warn("Fail to read {} from the disk cache: {}", key, e.getMessage());
+            index.remove(key, entry);
+            return null;
+        }
+    }
+
+    /**
+     * The ETag of a variant on disk, answered from the index without reading the segment.
+     */
+    public String findETag(String typeName, String fileName) {
+        if (!enabled) {
+            return null;
+        }
+        Entry entry = index.get(key(typeName, fileName));
+        return entry == null ? null : entry.etag;
+    }
+
+    public void put(String typeName, String fileName, ImageContent imageContent) {
+        if (enabled && !imageContent.isStreamed()) {
+            put(key(typeName, fileName), imageContent);
+        }
+    }
+
+    public void invalidate(String typeName, String fileName) {
+        if (!enabled) {
+            return;
+        }
+        final String key = key(typeName, fileName);
+        synchronized (writeLock) {
+            if (index.remove(key) == null) {
+                return;
+            }
+            try {
+                append(TOMBSTONE, key, "", "", -1, new byte[0]);
+            } catch (IOException e) {
+                log.error("Fail to write the disk cache tombstone of {}", key, e);
+            }
+        }
+    }
+
+    /**
+     * Drops every predefined variant of the given reference, used when its original is flushed.
+     */
+    public void invalidateVariants(String fileName) {
+        for (PredefineTypeName typeName : PredefineTypeName.values()) {
+            invalidate(typeName.getValue(), fileName);
+        }
+    }
+
+    public long size() {
+        return totalSize.get();
+    }
+
+    @PreDestroy
+    public void close() {
+        synchronized (writeLock) {
+            for (Segment segment : segments.values()) {
+                closeQuietly(segment);
+            }
+        }
+    }
+
+    private void put(String key, ImageContent imageContent) {
+        synchronized (writeLock) {
+            try {
+                index.put(key, appendPut(key, imageContent));
+                evictOldestSegments();
+            } catch (IOException e) {
+                log.error("Fail to write {} to the disk cache", key, e);
+            }
+        }
+    }
+
+    /**
+     * Moves an entry read from the next segment to evict to the active one, unless it was invalidated or replaced
+     * since it was read. Appending it after its tombstone would bring a flushed variant back, even after a restart.
+     */
+    private void reappend(String key, Entry entry, ImageContent imageContent) {
+        synchronized (writeLock) {
+            if (index.get(key) != entry) {
+                return;
+            }
+            try {
+                index.replace(key, entry, appendPut(key, imageContent));
+                evictOldestSegments();
+            } catch (IOException e) {
+                log.error("Fail to write {} to the disk cache", key, e);
+            }
+        }
+    }
+
+    private Entry appendPut(String key, ImageContent imageContent) throws IOException {
+        Instant lastModified = imageContent.getLastModified();
+        return append(PUT, key, imageContent.getContentType(), imageContent.getEtag(),
+                lastModified == null ? -1 : lastModified.toEpochMilli(), imageContent.getContent());
+    }
+
+    private Entry append(byte kind, String key, String contentType, String etag, long lastModified, byte[] payload)
+            throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] contentTypeBytes = contentType == null ? new byte[0] : contentType.getBytes(StandardCharsets.UTF_8);
+        byte[] etagBytes = etag == null ? new byte[0] : etag.getBytes(StandardCharsets.UTF_8);
+        int recordSize = HEADER_SIZE + keyBytes.length + contentTypeBytes.length + etagBytes.length + payload.length;
+        if (activeSegment.size > 0 && activeSegment.size + recordSize > segmentSize) {
+            activeSegment = createSegment(activeSegment.id + 1);
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(recordSize - payload.length);
+        header.putInt(MAGIC).putInt(0).put(kind)
+                .putInt(keyBytes.length).putInt(contentTypeBytes.length).putInt(etagBytes.length)
+                .putLong(lastModified).putInt(payload.length)
+                .put(keyBytes).put(contentTypeBytes).put(etagBytes);
+        CRC32 crc = new CRC32();
+        crc.update(header.array(), 8, header.capacity() - 8);
+        crc.update(payload);
+        header.putInt(4, (int) crc.getValue()).flip();
+
+        Segment segment = activeSegment;
+        long position = segment.size;
+        ByteBuffer[] record = {header, ByteBuffer.wrap(payload)};
+        while (record[0].hasRemaining() || record[1].hasRemaining()) {
+            segment.channel.write(record);
+        }
+        segment.size += recordSize;
+        totalSize.addAndGet(recordSize);
+        return new Entry(segment, position + recordSize - payload.length, payload.length, nullIfEmpty(contentType),
+                nullIfEmpty(etag), lastModified < 0 ? null : Instant.ofEpochMilli(lastModified));
+    }
+
+    private boolean isNextToEvict(Segment segment) {
+        return segment != activeSegment && segments.firstKey() == segment.id
+                && totalSize.get() > maximumSize - segmentSize;
+    }
+
+    private void evictOldestSegments() {
+        while (totalSize.get() > maximumSize && segments.size() > 1) {
+            Segment oldest = segments.pollFirstEntry().getValue();
+            index.values().removeIf(entry -> entry.segment == oldest);
+            totalSize.addAndGet(-oldest.size);
+            closeQuietly(oldest);
+            try {
+                Files.deleteIfExists(oldest.path);
+            } catch (IOException e) {
+                log.error("Fail to delete disk cache segment {}", oldest.path, e);
+            }
+            evictions.increment();
+        }
+    }
+
+    private void open() {
+        try {
+            Files.createDirectories(directory);
+            List<Path> segmentFiles;
+            try (Stream<Path> files = Files.list(directory)) {
+                segmentFiles = files.filter(file -> file.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+                        .sorted()
+                        .toList();
+            }
+            for (Path segmentFile : segmentFiles) {
+                String name = segmentFile.getFileName().toString();
+                long id = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                Segment segment = new Segment(id, segmentFile, openChannel(segmentFile));
+                segments.put(id, segment);
+                recover(segment);
+                totalSize.addAndGet(segment.size);
+            }
+            activeSegment = segments.isEmpty() ? createSegment(0) : segments.lastEntry().getValue();
+            activeSegment.channel.position(activeSegment.size);
+            log.info("Disk cache {} opened with {} variants in {} segments", directory, index.size(), segments.size());
+        } catch (IOException e) {
+            throw new IllegalStateException("Fail to open the disk cache in " + directory, e);
+        }
+    }
+
+    /**
+     * Replays the records of a segment into the index and truncates a torn or corrupt tail, left by a crash
+     * during an append.
+     */
+    private void recover(Segment segment) throws IOException {
+        long fileSize = segment.channel.size();
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (position + HEADER_SIZE <= fileSize) {
+            header.clear();
+            readFully(segment.channel, header, position);
+            header.flip();
+            int magic = header.getInt();
+            int expectedCrc = header.getInt();
+            byte kind = header.get();
+            int keyLength = header.getInt();
+            int contentTypeLength = header.getInt();
+            int etagLength = header.getInt();
+            long lastModified = header.getLong();
+            int payloadLength = header.getInt();
+            long recordSize = (long) HEADER_SIZE + keyLength + contentTypeLength + etagLength + payloadLength;
+            if (magic != MAGIC || (kind != PUT && kind != TOMBSTONE) || keyLength < 0 || contentTypeLength < 0
+                    || etagLength < 0 || payloadLength < 0 || position + recordSize > fileSize) {
+                break;
+            }
+            ByteBuffer body = ByteBuffer.allocate((int) recordSize - 8);
+            readFully(segment.channel, body, position + 8);
+            CRC32 crc = new CRC32();
+            crc.update(body.array());
+            if ((int) crc.getValue() != expectedCrc) {
+                break;
+            }
+            String key = new String(body.array(), HEADER_SIZE - 8, keyLength, StandardCharsets.UTF_8);
+            if (kind == PUT) {
+                String contentType = new String(body.array(), HEADER_SIZE - 8 + keyLength, contentTypeLength,
+                        StandardCharsets.UTF_8);
+                String etag = new String(body.array(), HEADER_SIZE - 8 + keyLength + contentTypeLength, etagLength,
+                        StandardCharsets.UTF_8);
+                index.put(key, new Entry(segment, position + recordSize - payloadLength, payloadLength,
+                        nullIfEmpty(contentType), nullIfEmpty(etag),
+                        lastModified < 0 ? null : Instant.ofEpochMilli(lastModified)));
+            } else {
+                index.remove(key);
+            }
+            position += recordSize;
+        }
+        if (position < fileSize) {
+            log.warn("Truncating disk cache segment {} from {} to {} bytes", segment.path, fileSize, position);
+            segment.channel.truncate(position);
+        }
+        segment.size = position;
+    }
+
+    private Segment createSegment(long id) throws IOException {
+        Path path = directory.resolve(String.format("%016d%s", id, SEGMENT_SUFFIX));
+        Segment segment = new Segment(id, path, openChannel(path));
+        segments.put(id, segment);
+        return segment;
+    }
+
+    private static FileChannel openChannel(Path path) throws IOException {
+        return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new IOException("Unexpected end of disk cache segment at " + position);
+            }
+        }
+    }
+
+    private static void closeQuietly(Segment segment) {
+        try {
+            segment.channel.close();
+        } catch (IOException e) {
+            log.warn("Fail to close disk cache segment {}", segment.path, e);
+        }
+    }
+
+    private static String nullIfEmpty(String value) {
+        return value == null || value.isEmpty() ? null : value;
+    }
+
+    private static String key(String typeName, String fileName) {
+        return typeName + '/' + fileName;
+    }
+
+    private static final class Segment {
+
+        private final long id;
+        private final Path path;
+        private final FileChannel channel;
+        // Written under the write lock, read by the eviction check
+        private volatile long size;
+
+        private Segment(long id, Path path, FileChannel channel) {
+            this.id = id;
+            this.path = path;
+            this.channel = channel;
+        }
+    }
+
+    private record Entry(Segment segment, long offset, int length, String contentType, String etag,
+                         Instant lastModified) {
+    }
+
+    /**
+     * Reads a mapped region of a segment without copying it onto the heap first.
+     */
+    private static final class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        private ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int read = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, read);
+            return read;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.deBijenkorf.imageresizeservice.dao;
+
+import com.deBijenkorf.imageresizeservice.config.ImageExistenceConfig;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import static com.deBijenkorf.imageresizeservice.dao.ImageDao.ORIGINAL;
+
+/**
+ * Tracks which objects are known to be missing from Amazon S3, so that lookups of variants that were never
+ * rendered go straight to the resize path instead of paying for a GET that finds nothing. Objects found missing
+ * are remembered for {@code image.existence.negative-ttl}. With {@code image.existence.bloom-filter} a Bloom
+ * filter of the stored objects is seeded from a listing at startup, after which any object it does not contain
+ * is known to be missing; objects written by other instances after the seeding are not seen by it.
+ */
+@Slf4j
+@Component
+public class ImageExistenceIndex {
+
+    private final Cache<String, Boolean> missing;
+    private final BloomFilter stored;
+    private final Counter skippedLookups;
+    private volatile boolean seeded;
+
+    public ImageExistenceIndex(ImageExistenceConfig existenceConfig, MeterRegistry meterRegistry) {
+        this.missing = Caffeine.newBuilder()
+                .expireAfterWrite(existenceConfig.getNegativeTtl())
+                .maximumSize(existenceConfig.getNegativeMaximumSize())
+                .build();
+        this.stored = existenceConfig.isBloomFilter()
+                ? new BloomFilter(existenceConfig.getExpectedObjects(), existenceConfig.getFalsePositiveRate())
+                : null;
+        this.skippedLookups = meterRegistry.counter("image.existence.skipped");
+    }
+
+    public boolean isBloomFilterEnabled() {
+        return stored != null;
+    }
+
+    public boolean isKnownMissing(String typeName, String fileName) {
+        final String key = key(typeName, fileName);
+        boolean knownMissing = missing.getIfPresent(key) != null || (seeded && !stored.mightContain(key));
+        if (knownMissing) {
+            skippedLookups.increment();
+        }
+        return knownMissing;
+    }
+
+    public void markMissing(String typeName, String fileName) {
+        missing.put(key(typeName, fileName), Boolean.TRUE);
+    }
+
+    public void markPresent(String typeName, String fileName) {
+        final String key = key(typeName, fileName);
+        if (stored != null) {
+            stored.put(key);
+        }
+        missing.invalidate(key);
+    }
+
+    public void invalidateAll() {
+        missing.invalidateAll();
+    }
+
+    /**
+     * Adds every object reported by the listing to the Bloom filter and only then starts trusting it. Objects
+     * saved while the listing runs are added by {@link #markPresent} and are not lost.
+     */
+    public void seed(Consumer<BiConsumer<String, String>> listing) {
+        if (stored == null) {
+            return;
+        }
+        final AtomicLong count = new AtomicLong();
+        listing.accept((typeName, fileName) -> {
+            stored.put(key(typeName, fileName));
+            count.incrementAndGet();
+        });
+        seeded = true;
+        log.info("Seeded the image existence index with {} stored objects", count.get());
+    }
+
+    private String key(String typeName, String fileName) {
+        return (typeName == null ? ORIGINAL : typeName) + '/' + fileName;
+    }
+}
@@ -0,0 +1,63 @@
+package com.deBijenkorf.imageresizeservice.model;
+
+import lombok.Getter;
+import org.springframework.util.DigestUtils;
+
+import java.io.InputStream;
+import java.time.Instant;
+
+/**
+ * Encoded image bytes as stored in Amazon S3, together with the content type they are served with and the
+ * validators used for conditional requests. Stored variants too large to buffer are carried as the open
+ * object stream instead, which is read once while writing the response and never cached.
+ */
+@Getter
+public class ImageContent {
+
+    private final byte[] content;
+
+    private final InputStream stream;
+
+    private final long contentLength;
+
+    private final String contentType;
+
+    // Hex MD5 of the content, which is also the ETag Amazon S3 reports for objects uploaded in one part
+    private String etag;
+
+    private final Instant lastModified;
+
+    public ImageContent(byte[] content, String contentType) {
+        this(content, contentType, null, null);
+    }
+
+    public ImageContent(byte[] content, String contentType, String etag, Instant lastModified) {
+        this(content, null, content.length, contentType, etag, lastModified);
+    }
+
+    private ImageContent(byte[] content, InputStream stream, long contentLength, String contentType, String etag,
+                         Instant lastModified) {
+        this.content = content;
+        this.stream = stream;
+        this.contentLength = contentLength;
+        this.contentType = contentType;
+        this.etag = etag;
+        this.lastModified = lastModified;
+    }
+
+    public static ImageContent streamed(InputStream stream, long contentLength, String contentType, String etag) {
+        return new ImageContent(null, stream, contentLength, contentType, etag, null);
+    }
+
+    public boolean isStreamed() {
+        return stream != null;
+    }
+
+    public String getEtag() {
+        if (etag == null && content != null) {
+            etag = DigestUtils.md5DigestAsHex(content);
+        }
+        return etag;
+    }
+
+}
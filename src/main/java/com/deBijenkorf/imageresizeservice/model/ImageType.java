@@ -1,5 +1,17 @@
 package com.deBijenkorf.imageresizeservice.model;
 
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.springframework.http.MediaType;
+
+@AllArgsConstructor
+@Getter
 public enum ImageType {
-    JPG, PNG
+    JPG("jpg", MediaType.IMAGE_JPEG_VALUE), PNG("png", MediaType.IMAGE_PNG_VALUE);
+    final String extension;
+    final String mediaType;
+
+    public static ImageType fromExtension(String extension) {
+        return PNG.getExtension().equalsIgnoreCase(extension) ? PNG : JPG;
+    }
 }
@@ -0,0 +1,23 @@
+package com.deBijenkorf.imageresizeservice.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.time.Duration;
+
+@AllArgsConstructor
+@Getter
+public class PrewarmReport {
+
+    private final int references;
+    private final int resumedFrom;
+    private final int rendered;
+    private final int skipped;
+    private final int failed;
+    private final Duration elapsed;
+
+    public double imagesPerSecond() {
+        long millis = Math.max(1, elapsed.toMillis());
+        return (rendered + skipped + failed) * 1000.0 / millis;
+    }
+}
@@ -0,0 +1,6 @@
+package com.deBijenkorf.imageresizeservice.model;
+
+public enum ResamplingType {
+
+    Java2D, Lanczos, Mitchell
+}
@@ -1,33 +1,174 @@
 package com.deBijenkorf.imageresizeservice.service;
 
+import com.deBijenkorf.imageresizeservice.config.SourceHttpClientConfig;
 import com.deBijenkorf.imageresizeservice.exception.NoResourceFoundException;
+import com.deBijenkorf.imageresizeservice.exception.ServiceOverloadedException;
+import com.deBijenkorf.imageresizeservice.model.ImageContent;
+import com.deBijenkorf.imageresizeservice.util.ImagePipelineMetrics;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Timer;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.stereotype.Service;
 
-import javax.imageio.ImageIO;
-import java.awt.image.BufferedImage;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
+import static com.deBijenkorf.imageresizeservice.util.ImagePipelineMetrics.OUTCOME;
 
+/**
+ * Downloads originals from the source site through one shared {@link HttpClient}, which keeps connections alive
+ * and pools them per host, negotiating HTTP/2 where the site supports it. Every download is bounded by the
+ * configured timeouts and by a per-host concurrency limit, so a slow source site cannot hold request threads
+ * indefinitely. Recently downloaded originals are kept with their validators and revalidated with a
+ * conditional GET.
+ */
 @Service
 @Slf4j
 public class ConnectionService {
 
-    public BufferedImage downloadImage(String url) {
+    private final SourceHttpClientConfig sourceConfig;
+    private final HttpClient httpClient;
+    private final ConcurrentMap<String, Semaphore> hostPermits = new ConcurrentHashMap<>();
+    private final Cache<String, SourceVersion> validators;
+    private final ImagePipelineMetrics metrics;
+
+    public ConnectionService(SourceHttpClientConfig sourceConfig, ImagePipelineMetrics metrics) {
+        this.sourceConfig = sourceConfig;
+        this.metrics = metrics;
+        this.httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(sourceConfig.getConnectTimeout())
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .build();
+        this.validators = Caffeine.newBuilder()
+                .maximumWeight(sourceConfig.getValidatorCacheSize().toBytes())
+                .weigher((String url, SourceVersion version) -> url.length() + version.getImage().getContent().length)
+                .build();
+    }
+
+    /**
+     * Downloads the encoded original as-is; it is decoded only when it gets resized.
+     */
+    public ImageContent downloadImage(String url) {
+        final URI uri;
         try {
-            HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
-            connection.connect();
-            BufferedImage image = ImageIO.read(connection.getInputStream());
-            if (image == null) {
-                log.info("Source Image not found");
-                throw new NoResourceFoundException("Source Image not found");
-            }
-            connection.disconnect();
-            return image;
-        } catch (Exception e) {
+            uri = URI.create(url);
+        } catch (IllegalArgumentException e) {
             log.info("Source Image not found");
             throw new NoResourceFoundException("Source Image not found");
         }
+        Semaphore permits = hostPermits.computeIfAbsent(String.valueOf(uri.getAuthority()),
+                host -> new Semaphore(sourceConfig.getMaxConcurrentPerHost()));
+        long deadline = System.nanoTime() + sourceConfig.getRequestTimeout().toNanos();
+        acquire(permits, uri, deadline);
+        Timer.Sample download = metrics.start();
+        String outcome = "failure";
+        try {
+            ImageContent imageContent = download(uri, url, deadline);
+            outcome = "success";
+            return imageContent;
+        } finally {
+            permits.release();
+            metrics.stop(download, "image.source.download", OUTCOME, outcome);
+        }
+    }
+
+    private void acquire(Semaphore permits, URI uri, long deadline) {
+        try {
+            if (!permits.tryAcquire(remainingMillis(deadline), TimeUnit.MILLISECONDS)) {
+                log.warn("Too many downloads in flight from {}", uri.getAuthority());
+                throw new ServiceOverloadedException("Too many downloads from the source site",
+                        sourceConfig.getRetryAfter());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new NoResourceFoundException("Source Image not found");
+        }
+    }
+
+    /**
+     * Waits for the whole response, body included, only until the deadline. A timeout on the request itself would
+     * only bound the wait for the headers, and a source trickling the body would hold the thread indefinitely.
+     */
+    private ImageContent download(URI uri, String url, long deadline) {
+        SourceVersion cached = validators.getIfPresent(url);
+        HttpRequest.Builder request = HttpRequest.newBuilder(uri).GET();
+        if (cached != null && cached.getEtag() != null) {
+            request.header(HttpHeaders.IF_NONE_MATCH, cached.getEtag());
+        }
+        if (cached != null && cached.getLastModified() != null) {
+            request.header(HttpHeaders.IF_MODIFIED_SINCE, cached.getLastModified());
+        }
+        CompletableFuture<HttpResponse<byte[]>> exchange =
+                httpClient.sendAsync(request.build(), HttpResponse.BodyHandlers.ofByteArray());
+        HttpResponse<byte[]> response;
+        try {
+            response = exchange.get(remainingMillis(deadline), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            exchange.cancel(true);
+            log.info("Source Image not downloaded within {}", sourceConfig.getRequestTimeout());
+            throw new NoResourceFoundException("Source Image not found");
+        } catch (ExecutionException e) {
+            log.info("Source Image not found: {}", e.getCause().getMessage());
+            throw new NoResourceFoundException("Source Image not found");
+        } catch (InterruptedException e) {
+            exchange.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new NoResourceFoundException("Source Image not found");
+        }
+        if (response.statusCode() == HttpStatus.NOT_MODIFIED.value() && cached != null) {
+            return cached.getImage();
+        }
+        byte[] image = response.body();
+        if (response.statusCode() != HttpStatus.OK.value() || image == null || image.length == 0) {
+            log.info("Source Image not found, status {}", response.statusCode());
+            throw new NoResourceFoundException("Source Image not found");
+        }
+        String contentType = response.headers().firstValue(HttpHeaders.CONTENT_TYPE)
+                .orElse(MediaType.APPLICATION_OCTET_STREAM_VALUE);
+        ImageContent imageContent = new ImageContent(image, contentType);
+        metrics.recordSize("image.original.size", image.length, "source", "download");
+        remember(url, response, imageContent);
+        return imageContent;
+    }
+
+    private static long remainingMillis(long deadline) {
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+    }
+
+    private void remember(String url, HttpResponse<byte[]> response, ImageContent imageContent) {
+        String etag = response.headers().firstValue(HttpHeaders.ETAG).orElse(null);
+        String lastModified = response.headers().firstValue(HttpHeaders.LAST_MODIFIED).orElse(null);
+        if (etag != null || lastModified != null) {
+            validators.put(url, new SourceVersion(imageContent, etag, lastModified));
+        } else {
+            validators.invalidate(url);
+        }
+    }
+
+    @AllArgsConstructor
+    @Getter
+    private static class SourceVersion {
+
+        private final ImageContent image;
+
+        private final String etag;
+
+        private final String lastModified;
     }
 }
@@ -0,0 +1,155 @@
+package com.deBijenkorf.imageresizeservice.service;
+
+import com.amazonaws.SdkClientException;
+import com.deBijenkorf.imageresizeservice.config.ImageWriteBehindConfig;
+import com.deBijenkorf.imageresizeservice.dao.ImageDao;
+import com.deBijenkorf.imageresizeservice.model.ImageContent;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Persists originals and rendered variants in Amazon S3. With {@code image.write-behind.enabled} the uploads are
+ * queued on a bounded background pool and retried, so the response does not wait for the S3 PUT; when the queue
+ * is full, by task count or by the bytes of the queued payloads, or the pool is draining, the caller uploads
+ * synchronously. Without it every upload runs on the calling thread.
+ */
+@Slf4j
+@Service
+public class ImagePersistenceService {
+
+    private final ImageDao imageDao;
+    private final ImageWriteBehindConfig writeBehindConfig;
+    private final ThreadPoolExecutor executor;
+    // Payload bytes of the uploads queued or running on the executor
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final Counter failures;
+    private final Counter retries;
+
+    public ImagePersistenceService(ImageDao imageDao, ImageWriteBehindConfig writeBehindConfig, MeterRegistry meterRegistry) {
+        this.imageDao = imageDao;
+        this.writeBehindConfig = writeBehindConfig;
+        this.failures = meterRegistry.counter("image.write-behind.failures");
+        this.retries = meterRegistry.counter("image.write-behind.retries");
+        this.executor = writeBehindConfig.isEnabled() ? createExecutor(writeBehindConfig) : null;
+        if (executor != null) {
+            Gauge.builder("image.write-behind.queue.size", executor, e -> e.getQueue().size())
+                    .register(meterRegistry);
+            Gauge.builder("image.write-behind.active", executor, ThreadPoolExecutor::getActiveCount)
+                    .register(meterRegistry);
+            Gauge.builder("image.write-behind.queue.bytes", queuedBytes, AtomicLong::get)
+                    .register(meterRegistry);
+        }
+    }
+
+    public void save(ImageContent imageContent, String fileName, String typeName) {
+        persist(() -> imageDao.save(imageContent, fileName, typeName), imageContent.getContentLength(), typeName,
+                fileName);
+    }
+
+    /**
+     * Stores the same payload under several types as one upload task, retried as a whole.
+     */
+    public void saveAll(ImageContent imageContent, String fileName, List<String> typeNames) {
+        persist(() -> typeNames.forEach(typeName -> imageDao.save(imageContent, fileName, typeName)),
+                imageContent.getContentLength(), String.join(",", typeNames), fileName);
+    }
+
+    public int queueSize() {
+        return executor == null ? 0 : executor.getQueue().size();
+    }
+
+    public long queuedBytes() {
+        return queuedBytes.get();
+    }
+
+    private void persist(Runnable upload, long size, String typeName, String fileName) {
+        if (executor == null) {
+            uploadOnce(upload, typeName, fileName);
+        } else if (queuedBytes.addAndGet(size) > writeBehindConfig.getMaximumQueuedSize().toBytes()) {
+            queuedBytes.addAndGet(-size);
+            uploadWithRetries(upload, typeName, fileName);
+        } else {
+            executor.execute(() -> {
+                try {
+                    uploadWithRetries(upload, typeName, fileName);
+                } finally {
+                    queuedBytes.addAndGet(-size);
+                }
+            });
+        }
+    }
+
+    private void uploadOnce(Runnable upload, String typeName, String fileName) {
+        try {
+            upload.run();
+        } catch (SdkClientException e) {
+            failures.increment();
+            log.error("Error {} occurred while uploading {}/{}", e.getLocalizedMessage(), typeName, fileName);
+        }
+    }
+
+    private void uploadWithRetries(Runnable upload, String typeName, String fileName) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                upload.run();
+                return;
+            } catch (RuntimeException e) {
+                if (attempt >= writeBehindConfig.getMaxAttempts()) {
+                    failures.increment();
+                    log.error("Giving up uploading {}/{} after {} attempts", typeName, fileName, attempt, e);
+                    return;
+                }
+                retries.increment();
+                log.warn("Error {} occurred while uploading {}/{}, retrying", e.getLocalizedMessage(), typeName, fileName);
+                if (!backOff(attempt)) {
+                    failures.increment();
+                    return;
+                }
+            }
+        }
+    }
+
+    private boolean backOff(int attempt) {
+        try {
+            Thread.sleep(writeBehindConfig.getRetryBackoff().toMillis() * attempt);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Stops accepting uploads and waits for the queued ones to finish before the application shuts down.
+     */
+    @PreDestroy
+    public void drain() throws InterruptedException {
+        if (executor == null) {
+            return;
+        }
+        executor.shutdown();
+        if (!executor.awaitTermination(writeBehindConfig.getShutdownTimeout().toMillis(), TimeUnit.MILLISECONDS)) {
+            log.warn("{} image uploads were still pending at shutdown", executor.getQueue().size());
+            executor.shutdownNow();
+        }
+    }
+
+    private static ThreadPoolExecutor createExecutor(ImageWriteBehindConfig writeBehindConfig) {
+        return new ThreadPoolExecutor(writeBehindConfig.getThreads(), writeBehindConfig.getThreads(),
+                0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(writeBehindConfig.getQueueCapacity()),
+                new CustomizableThreadFactory("image-write-behind-"),
+                (upload, pool) -> upload.run());
+    }
+}
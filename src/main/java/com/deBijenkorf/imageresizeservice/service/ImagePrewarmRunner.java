@@ -0,0 +1,35 @@
+package com.deBijenkorf.imageresizeservice.service;
+
+import com.deBijenkorf.imageresizeservice.config.ImagePrewarmConfig;
+import com.deBijenkorf.imageresizeservice.model.PrewarmReport;
+import lombok.AllArgsConstructor;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.stereotype.Component;
+
+import java.nio.file.Paths;
+
+/**
+ * Runs the pre-warming job at startup when {@code image.prewarm.manifest} is set, then by default closes the
+ * application, waiting for queued uploads, and exits non-zero when some references failed.
+ */
+@Component
+@AllArgsConstructor
+@ConditionalOnProperty(value = "image.prewarm.manifest")
+public class ImagePrewarmRunner implements ApplicationRunner {
+
+    private final ImagePrewarmService imagePrewarmService;
+    private final ImagePrewarmConfig prewarmConfig;
+    private final ConfigurableApplicationContext applicationContext;
+
+    @Override
+    public void run(ApplicationArguments args) throws Exception {
+        PrewarmReport report = imagePrewarmService.prewarm(Paths.get(prewarmConfig.getManifest()));
+        if (prewarmConfig.isExitWhenDone()) {
+            System.exit(SpringApplication.exit(applicationContext, () -> report.getFailed() == 0 ? 0 : 1));
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package com.deBijenkorf.imageresizeservice.service;
+
+import com.deBijenkorf.imageresizeservice.config.ImagePrewarmConfig;
+import com.deBijenkorf.imageresizeservice.exception.ServiceOverloadedException;
+import com.deBijenkorf.imageresizeservice.model.PredefineTypeName;
+import com.deBijenkorf.imageresizeservice.model.PrewarmReport;
+import com.deBijenkorf.imageresizeservice.util.ImageReferences;
+import lombok.AllArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Renders the predefined variants of every reference in a manifest ahead of traffic, through the same miss
+ * pipeline as {@code /image/show}. Variants already in Amazon S3 are skipped. Progress is checkpointed next to
+ * the manifest as the number of leading references that are done, so an interrupted run resumes where it
+ * stopped; references that failed are appended to a {@code .failed} file that can be fed back as a manifest.
+ */
+@Slf4j
+@Service
+@AllArgsConstructor
+public class ImagePrewarmService {
+
+    static final String CHECKPOINT_SUFFIX = ".checkpoint";
+    static final String FAILED_SUFFIX = ".failed";
+
+    private final ImageResizeService imageResizeService;
+    private final ImagePrewarmConfig prewarmConfig;
+
+    public PrewarmReport prewarm(Path manifest) throws IOException, InterruptedException {
+        final long startedAt = System.nanoTime();
+        List<String> references = readReferences(manifest);
+        List<String> typeNames = typeNames();
+        Path checkpointFile = sibling(manifest, CHECKPOINT_SUFFIX);
+        Path failedFile = sibling(manifest, FAILED_SUFFIX);
+        int resumeFrom = Math.min(readCheckpoint(checkpointFile), references.size());
+        if (resumeFrom == 0) {
+            Files.deleteIfExists(failedFile);
+        } else {
+            log.info("Resuming pre-warming of {} after {} references", manifest, resumeFrom);
+        }
+
+        Progress progress = new Progress(references.size(), resumeFrom, prewarmConfig.getCheckpointInterval(),
+                checkpointFile, failedFile);
+        int concurrency = prewarmConfig.getConcurrency();
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency,
+                new CustomizableThreadFactory("image-prewarm-"));
+        Semaphore pending = new Semaphore(concurrency * 2);
+        try {
+            for (int i = resumeFrom; i < references.size(); i++) {
+                final int index = i;
+                pending.acquire();
+                executor.execute(() -> {
+                    try {
+                        prewarmReference(references.get(index), typeNames, progress);
+                        progress.done(index);
+                    } finally {
+                        pending.release();
+                    }
+                });
+            }
+        } finally {
+            executor.shutdown();
+        }
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        progress.finish();
+
+        PrewarmReport report = new PrewarmReport(references.size(), resumeFrom, progress.rendered.get(),
+                progress.skipped.get(), progress.failed.get(), Duration.ofNanos(System.nanoTime() - startedAt));
+        log.info("Pre-warmed {} references in {} ms ({} images/s): {} rendered, {} skipped, {} failed",
+                references.size() - resumeFrom, report.getElapsed().toMillis(),
+                String.format("%.1f", report.imagesPerSecond()), report.getRendered(), report.getSkipped(),
+                report.getFailed());
+        return report;
+    }
+
+    private void prewarmReference(String reference, List<String> typeNames, Progress progress) {
+        boolean failed = false;
+        for (String typeName : typeNames) {
+            try {
+                if (prerender(typeName, reference)) {
+                    progress.rendered.incrementAndGet();
+                } else {
+                    progress.skipped.incrementAndGet();
+                }
+            } catch (RuntimeException e) {
+                failed = true;
+                progress.failed.incrementAndGet();
+                log.warn("Fail to pre-warm {}/{}: {}", typeName, reference, e.getMessage());
+            }
+        }
+        if (failed) {
+            progress.failed(reference);
+        }
+    }
+
+    // The pre-warm job competes with live traffic for the resize queue, so it backs off instead of failing
+    private boolean prerender(String typeName, String reference) {
+        while (true) {
+            try {
+                return imageResizeService.prerender(typeName, reference);
+            } catch (ServiceOverloadedException e) {
+                try {
+                    Thread.sleep(e.getRetryAfter().toMillis());
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while pre-warming", interrupted);
+                }
+            }
+        }
+    }
+
+    private List<String> typeNames() {
+        if (prewarmConfig.getTypes() == null || prewarmConfig.getTypes().isEmpty()) {
+            return Arrays.stream(PredefineTypeName.values())
+                    .map(PredefineTypeName::getValue)
+                    .collect(Collectors.toList());
+        }
+        return prewarmConfig.getTypes();
+    }
+
+    private static List<String> readReferences(Path manifest) throws IOException {
+        try (Stream<String> lines = Files.lines(manifest)) {
+            return lines.map(String::trim)
+                    .filter(line -> !line.isEmpty() && !line.startsWith("#"))
+                    .map(ImageReferences::normalize)
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static int readCheckpoint(Path checkpointFile) throws IOException {
+        if (!Files.exists(checkpointFile)) {
+            return 0;
+        }
+        return Integer.parseInt(Files.readString(checkpointFile).trim());
+    }
+
+    private static Path sibling(Path manifest, String suffix) {
+        return manifest.resolveSibling(manifest.getFileName() + suffix);
+    }
+
+    private static final class Progress {
+
+        private final AtomicInteger rendered = new AtomicInteger();
+        private final AtomicInteger skipped = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
+        private final boolean[] done;
+        private final int checkpointInterval;
+        private final Path checkpointFile;
+        private final Path failedFile;
+        private int completedUpTo;
+        private int sinceCheckpoint;
+
+        private Progress(int references, int resumeFrom, int checkpointInterval, Path checkpointFile, Path failedFile) {
+            this.done = new boolean[references];
+            this.completedUpTo = resumeFrom;
+            this.checkpointInterval = checkpointInterval;
+            this.checkpointFile = checkpointFile;
+            this.failedFile = failedFile;
+        }
+
+        // References finish out of order, the checkpoint only moves past the ones that are all done
+        private synchronized void done(int index) {
+            done[index] = true;
+            while (completedUpTo < done.length && done[completedUpTo]) {
+                completedUpTo++;
+            }
+            if (++sinceCheckpoint >= checkpointInterval) {
+                sinceCheckpoint = 0;
+                writeCheckpoint();
+            }
+        }
+
+        private synchronized void failed(String reference) {
+            try {
+                Files.writeString(failedFile, reference + System.lineSeparator(),
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            } catch (IOException e) {
+                log.error("Fail to record failed reference {}", reference, e);
+            }
+        }
+
+        // A complete run leaves no checkpoint behind, so the next run over the same manifest starts over
+        private synchronized void finish() throws IOException {
+            if (completedUpTo == done.length) {
+                Files.deleteIfExists(checkpointFile);
+            } else {
+                writeCheckpoint();
+            }
+        }
+
+        private void writeCheckpoint() {
+            try {
+                Path temp = checkpointFile.resolveSibling(checkpointFile.getFileName() + ".tmp");
+                Files.writeString(temp, Integer.toString(completedUpTo));
+                Files.move(temp, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Fail to write pre-warm checkpoint " + checkpointFile, e);
+            }
+        }
+    }
+}
@@ -1,50 +1,177 @@
 package com.deBijenkorf.imageresizeservice.service;
 
+import com.deBijenkorf.imageresizeservice.dao.ImageCache;
 import com.deBijenkorf.imageresizeservice.dao.ImageDao;
+import com.deBijenkorf.imageresizeservice.dao.ImageDiskCache;
 import com.deBijenkorf.imageresizeservice.exception.NoResourceFoundException;
+import com.deBijenkorf.imageresizeservice.exception.ServiceOverloadedException;
+import com.deBijenkorf.imageresizeservice.model.ImageContent;
 import com.deBijenkorf.imageresizeservice.model.PredefineTypeName;
+import com.deBijenkorf.imageresizeservice.util.ImagePipelineMetrics;
 import com.deBijenkorf.imageresizeservice.util.ImageResizeUtil;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
-import javax.imageio.ImageIO;
-import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.stream.Collectors;
+
+import static com.deBijenkorf.imageresizeservice.util.ImagePipelineMetrics.OUTCOME;
+import static com.deBijenkorf.imageresizeservice.util.ImagePipelineMetrics.SCALE;
+import static com.deBijenkorf.imageresizeservice.util.ImagePipelineMetrics.TYPE;
 
 @Slf4j
 @Service
 public class ImageResizeService {
 
     public static final String ORIGINAL = "original";
-    public static final String JPG = "jpg";
     private final ImageDao imageDao;
+    private final ImageCache imageCache;
+    private final ImageDiskCache imageDiskCache;
     private final ImageResizeUtil imageResizeUtil;
+    private final ResizeExecutor resizeExecutor;
+    private final ImagePersistenceService imagePersistenceService;
     private final ConnectionService connectionService;
+    private final ImagePipelineMetrics metrics;
     private final String sourceUrl;
+    private final boolean renderAllVariants;
+    private final ConcurrentMap<String, CompletableFuture<ImageContent>> inFlightRenders = new ConcurrentHashMap<>();
 
-    public ImageResizeService(ImageDao imageDao, ImageResizeUtil imageResizeUtil, ConnectionService connectionService,
-                              @Value("${source-root-url}") String sourceUrl) {
+    public ImageResizeService(ImageDao imageDao, ImageCache imageCache, ImageDiskCache imageDiskCache,
+                              ImageResizeUtil imageResizeUtil, ResizeExecutor resizeExecutor,
+                              ImagePersistenceService imagePersistenceService, ConnectionService connectionService,
+                              ImagePipelineMetrics metrics,
+                              @Value("${source-root-url}") String sourceUrl,
+                              @Value("${image.render-all-variants:false}") boolean renderAllVariants) {
         this.imageDao = imageDao;
+        this.imageCache = imageCache;
+        this.imageDiskCache = imageDiskCache;
         this.imageResizeUtil = imageResizeUtil;
+        this.resizeExecutor = resizeExecutor;
+        this.imagePersistenceService = imagePersistenceService;
         this.connectionService = connectionService;
+        this.metrics = metrics;
         this.sourceUrl = sourceUrl;
+        this.renderAllVariants = renderAllVariants;
+    }
+
+
+    public ImageContent findResizedImage(String predefinedTypeName, String originalFilename) {
+        checkPredefineTypeExists(predefinedTypeName);
+        Timer.Sample lookup = metrics.start();
+        String outcome = "failure";
+        try {
+            ImageContent resizedImage = imageCache.get(predefinedTypeName, originalFilename);
+            if (resizedImage != null) {
+                outcome = "cache";
+                return resizedImage;
+            }
+
+            resizedImage = imageDiskCache.get(predefinedTypeName, originalFilename);
+            if (resizedImage != null) {
+                if (!resizedImage.isStreamed()) {
+                    imageCache.put(predefinedTypeName, originalFilename, resizedImage);
+                }
+                outcome = "disk";
+                return resizedImage;
+            }
+
+            resizedImage = findImageInAwsS3(predefinedTypeName, originalFilename);
+
+            if (resizedImage == null) {
+                resizedImage = renderMissingImage(predefinedTypeName, originalFilename, true);
+                outcome = "render";
+                return resizedImage;
+            }
+
+            if (!resizedImage.isStreamed()) {
+                imageCache.put(predefinedTypeName, originalFilename, resizedImage);
+                imageDiskCache.put(predefinedTypeName, originalFilename, resizedImage);
+            }
+            outcome = "s3";
+            return resizedImage;
+        } finally {
+            metrics.stop(lookup, "image.request", TYPE, predefinedTypeName, SCALE, metrics.scale(), OUTCOME, outcome);
+        }
     }
 
+    /**
+     * Looks up the ETag of a variant, from the caches or with a HEAD request to Amazon S3, so that conditional
+     * requests can be answered without transferring or rendering the image.
+     *
+     * @return the ETag, or null when the variant has not been rendered yet
+     */
+    public String findETag(String predefinedTypeName, String originalFilename) {
+        checkPredefineTypeExists(predefinedTypeName);
+        ImageContent cachedImage = imageCache.get(predefinedTypeName, originalFilename);
+        if (cachedImage != null) {
+            return cachedImage.getEtag();
+        }
+        String etag = imageDiskCache.findETag(predefinedTypeName, originalFilename);
+        if (etag != null) {
+            return etag;
+        }
+        return imageDao.findETag(predefinedTypeName, originalFilename);
+    }
 
-    public byte[] findResizedImage(String predefinedTypeName, String originalFilename) {
+    /**
+     * Renders and stores a variant ahead of traffic unless it is already in Amazon S3. The variant is not cached,
+     * so that a bulk pre-warm does not evict the working set from memory nor rotate the disk cache.
+     *
+     * @return whether the variant had to be rendered
+     */
+    public boolean prerender(String predefinedTypeName, String originalFilename) {
         checkPredefineTypeExists(predefinedTypeName);
-        BufferedImage resizedInputStream = findImageInAwsS3(predefinedTypeName, originalFilename);
+        if (imageDao.exists(predefinedTypeName, originalFilename)) {
+            return false;
+        }
+        renderMissingImage(predefinedTypeName, originalFilename, false);
+        return true;
+    }
 
-        if (resizedInputStream == null) {
-            resizedInputStream = findOriginalAwsS3(ORIGINAL, originalFilename);
+    /**
+     * Coalesces concurrent misses for the same variant: the first caller fetches, resizes and saves the image,
+     * the others wait for and share its result or its failure.
+     */
+    private ImageContent renderMissingImage(String predefinedTypeName, String originalFilename, boolean cache) {
+        final String key = predefinedTypeName + '/' + originalFilename;
+        CompletableFuture<ImageContent> render = new CompletableFuture<>();
+        CompletableFuture<ImageContent> inFlight = inFlightRenders.putIfAbsent(key, render);
+        if (inFlight != null) {
+            return awaitRender(inFlight);
         }
 
-        ByteArrayOutputStream resizedOutputStream = new ByteArrayOutputStream();
-        writeImage(resizedInputStream, resizedOutputStream);
+        try {
+            ImageContent resizedImage = findOriginalAwsS3(predefinedTypeName, originalFilename, cache);
+            if (cache) {
+                imageCache.put(predefinedTypeName, originalFilename, resizedImage);
+                imageDiskCache.put(predefinedTypeName, originalFilename, resizedImage);
+            }
+            render.complete(resizedImage);
+            return resizedImage;
+        } catch (RuntimeException e) {
+            render.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlightRenders.remove(key, render);
+        }
+    }
 
-        return resizedOutputStream.toByteArray();
+    private ImageContent awaitRender(CompletableFuture<ImageContent> inFlight) {
+        try {
+            return inFlight.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        }
     }
 
     private void checkPredefineTypeExists(String predefinedTypeName) {
@@ -58,39 +185,81 @@ public class ImageResizeService {
 
     public void flush(String predefinedTypeName, String originalFilename) {
         imageDao.deleteObject(originalFilename, predefinedTypeName);
+        invalidate(predefinedTypeName, originalFilename);
     }
 
-    private void writeImage(BufferedImage resizedInputStream, ByteArrayOutputStream baos) {
-        try {
-            ImageIO.write(resizedInputStream, JPG, baos);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+    public void flush(String predefinedTypeName, List<String> originalFilenames) {
+        imageDao.deleteObjects(originalFilenames, predefinedTypeName);
+        originalFilenames.forEach(originalFilename -> invalidate(predefinedTypeName, originalFilename));
+    }
+
+    private void invalidate(String predefinedTypeName, String originalFilename) {
+        if (ORIGINAL.equals(predefinedTypeName)) {
+            imageCache.invalidateVariants(originalFilename);
+            imageDiskCache.invalidateVariants(originalFilename);
+        } else {
+            imageCache.invalidate(predefinedTypeName, originalFilename);
+            imageDiskCache.invalidate(predefinedTypeName, originalFilename);
         }
     }
 
-    BufferedImage findOriginalAwsS3(String predefinedTypeName, String originalFilename) {
-        BufferedImage originalInputStream = findImageInAwsS3(ORIGINAL, originalFilename);
+    ImageContent findOriginalAwsS3(String predefinedTypeName, String originalFilename, boolean cache) {
+        ImageContent originalImage = findImageInAwsS3(ORIGINAL, originalFilename);
 
-        if (originalInputStream == null) {
-            originalInputStream = connectionService.downloadImage(sourceUrl + originalFilename);
-            imageDao.save(originalInputStream, originalFilename, ORIGINAL);
+        if (originalImage != null) {
+            return resizeAndSaveImageInAWS(predefinedTypeName, originalFilename, originalImage, cache);
         }
 
-        return resizeAndSaveImageInAWS(predefinedTypeName, originalFilename, originalInputStream);
+        originalImage = connectionService.downloadImage(sourceUrl + originalFilename);
+        ImageContent resizedImage = resizeAndSaveImageInAWS(predefinedTypeName, originalFilename, originalImage,
+                cache);
+        imagePersistenceService.save(originalImage, originalFilename, ORIGINAL);
+        return resizedImage;
     }
 
-    private BufferedImage resizeAndSaveImageInAWS(String predefinedTypeName, String originalFilename, BufferedImage originalInputStream) {
+    private ImageContent resizeAndSaveImageInAWS(String predefinedTypeName, String originalFilename,
+                                                 ImageContent originalImage, boolean cache) {
         try {
-            BufferedImage resizedInputStream = imageResizeUtil.resize(originalInputStream);
-            imageDao.save(resizedInputStream, originalFilename, predefinedTypeName);
-            return resizedInputStream;
+            ImageContent resizedImage = resizeExecutor.call(() -> imageResizeUtil.resize(originalImage.getContent()));
+            metrics.recordSize("image.variant.size", resizedImage.getContentLength(),
+                    TYPE, predefinedTypeName, SCALE, metrics.scale());
+            if (renderAllVariants) {
+                saveAllVariants(predefinedTypeName, originalFilename, resizedImage, cache);
+            } else {
+                imagePersistenceService.save(resizedImage, originalFilename, predefinedTypeName);
+            }
+            return resizedImage;
+        } catch (ServiceOverloadedException e) {
+            throw e;
         } catch (Throwable e) {
             log.warn("Fail to save image in Amazon S3 {}", e);
             throw new NoResourceFoundException("Fail to save in Amazon S3");
         }
     }
 
-    private BufferedImage findImageInAwsS3(String predefinedTypeName, String originalFilename) {
+    /**
+     * Every predefined type shares the same {@link com.deBijenkorf.imageresizeservice.config.ImageConfig}, so the
+     * rendering of one variant is the rendering of all of them: store it under every type in one batch and cache
+     * the variants that were not requested, so their first request neither downloads nor decodes the original.
+     */
+    private void saveAllVariants(String predefinedTypeName, String originalFilename, ImageContent resizedImage,
+                                 boolean cache) {
+        List<String> typeNames = Arrays.stream(PredefineTypeName.values())
+                .map(PredefineTypeName::getValue)
+                .collect(Collectors.toList());
+        imagePersistenceService.saveAll(resizedImage, originalFilename, typeNames);
+        if (!cache) {
+            return;
+        }
+        typeNames.stream()
+                .filter(typeName -> !typeName.equals(predefinedTypeName))
+                .forEach(typeName -> {
+                    imageCache.put(typeName, originalFilename, resizedImage);
+                    imageDiskCache.put(typeName, originalFilename, resizedImage);
+                });
+    }
+
+    private ImageContent findImageInAwsS3(String predefinedTypeName, String originalFilename) {
         try {
             return imageDao.findByName(predefinedTypeName, originalFilename);
         } catch (Throwable e) {
@@ -0,0 +1,85 @@
+package com.deBijenkorf.imageresizeservice.service;
+
+import com.deBijenkorf.imageresizeservice.config.ImageResizeExecutorConfig;
+import com.deBijenkorf.imageresizeservice.exception.ServiceOverloadedException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.*;
+
+/**
+ * Runs the CPU-bound resize work on a pool of platform threads sized to the available cores, so that request
+ * threads, virtual or not, never oversubscribe the CPU with resizing. The pool has a bounded queue: once it is
+ * full new resizes are shed with a {@link ServiceOverloadedException} instead of piling up behind the others.
+ */
+@Slf4j
+@Component
+public class ResizeExecutor {
+
+    private final ThreadPoolExecutor executor;
+    private final Duration retryAfter;
+    private final Timer queueWait;
+    private final Counter rejections;
+
+    public ResizeExecutor(ImageResizeExecutorConfig resizeExecutorConfig, MeterRegistry meterRegistry) {
+        int poolSize = resizeExecutorConfig.poolSize();
+        this.executor = new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(resizeExecutorConfig.getQueueCapacity()),
+                new CustomizableThreadFactory("image-resize-"), new ThreadPoolExecutor.AbortPolicy());
+        this.retryAfter = resizeExecutorConfig.getRetryAfter();
+        this.queueWait = meterRegistry.timer("image.resize.queue.wait");
+        this.rejections = meterRegistry.counter("image.resize.rejected");
+        Gauge.builder("image.resize.active", executor, ThreadPoolExecutor::getActiveCount).register(meterRegistry);
+        Gauge.builder("image.resize.queue.size", executor, e -> e.getQueue().size()).register(meterRegistry);
+    }
+
+    public <T> T call(Callable<T> task) throws IOException {
+        Future<T> future = submit(task);
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the image to be resized", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException ioException) {
+                throw ioException;
+            }
+            if (cause instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            if (cause instanceof Error error) {
+                throw error;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    private <T> Future<T> submit(Callable<T> task) {
+        final long submittedAt = System.nanoTime();
+        try {
+            return executor.submit(() -> {
+                queueWait.record(System.nanoTime() - submittedAt, TimeUnit.NANOSECONDS);
+                return task.call();
+            });
+        } catch (RejectedExecutionException e) {
+            rejections.increment();
+            log.warn("Resize queue is full, rejecting request");
+            throw new ServiceOverloadedException("Too many images are being resized", retryAfter);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
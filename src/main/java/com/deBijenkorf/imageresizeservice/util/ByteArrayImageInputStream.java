@@ -0,0 +1,50 @@
+package com.deBijenkorf.imageresizeservice.util;
+
+import javax.imageio.stream.ImageInputStreamImpl;
+import java.io.IOException;
+
+/**
+ * Seekable image input stream over an encoded image that is already in memory, so that decoders read the array
+ * directly instead of through the file or memory cache that {@link javax.imageio.ImageIO#createImageInputStream}
+ * puts in front of an {@link java.io.InputStream}.
+ */
+class ByteArrayImageInputStream extends ImageInputStreamImpl {
+
+    private final byte[] buffer;
+
+    ByteArrayImageInputStream(byte[] buffer) {
+        this.buffer = buffer;
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkClosed();
+        bitOffset = 0;
+        if (streamPos >= buffer.length) {
+            return -1;
+        }
+        return buffer[(int) streamPos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        checkClosed();
+        bitOffset = 0;
+        if (len == 0) {
+            return 0;
+        }
+        int available = (int) (buffer.length - streamPos);
+        if (available <= 0) {
+            return -1;
+        }
+        int count = Math.min(len, available);
+        System.arraycopy(buffer, (int) streamPos, b, off, count);
+        streamPos += count;
+        return count;
+    }
+
+    @Override
+    public long length() {
+        return buffer.length;
+    }
+}
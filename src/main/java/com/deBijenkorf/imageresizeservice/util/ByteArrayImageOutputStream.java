@@ -0,0 +1,87 @@
+package com.deBijenkorf.imageresizeservice.util;
+
+import javax.imageio.stream.ImageOutputStreamImpl;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Seekable image output stream backed by a single growable array, so an encoder writes its payload straight
+ * into the buffer that is returned, instead of going through the block cache of
+ * {@link javax.imageio.stream.MemoryCacheImageOutputStream} and a {@link java.io.ByteArrayOutputStream}.
+ */
+class ByteArrayImageOutputStream extends ImageOutputStreamImpl {
+
+    private byte[] buffer;
+    private int length;
+
+    ByteArrayImageOutputStream(int initialCapacity) {
+        this.buffer = new byte[Math.max(1024, initialCapacity)];
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkClosed();
+        bitOffset = 0;
+        if (streamPos >= length) {
+            return -1;
+        }
+        return buffer[(int) streamPos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        checkClosed();
+        bitOffset = 0;
+        if (len == 0) {
+            return 0;
+        }
+        int available = (int) (length - streamPos);
+        if (available <= 0) {
+            return -1;
+        }
+        int count = Math.min(len, available);
+        System.arraycopy(buffer, (int) streamPos, b, off, count);
+        streamPos += count;
+        return count;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        checkClosed();
+        flushBits();
+        ensureCapacity(streamPos + 1);
+        buffer[(int) streamPos++] = (byte) b;
+        length = Math.max(length, (int) streamPos);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        checkClosed();
+        flushBits();
+        ensureCapacity(streamPos + len);
+        System.arraycopy(b, off, buffer, (int) streamPos, len);
+        streamPos += len;
+        length = Math.max(length, (int) streamPos);
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    /**
+     * The written bytes, without a copy when the buffer happens to be filled exactly.
+     */
+    byte[] toByteArray() {
+        return length == buffer.length ? buffer : Arrays.copyOf(buffer, length);
+    }
+
+    private void ensureCapacity(long capacity) throws IOException {
+        if (capacity > Integer.MAX_VALUE - 8) {
+            throw new IOException("Encoded image is too large");
+        }
+        if (capacity > buffer.length) {
+            buffer = Arrays.copyOf(buffer, (int) Math.max(capacity, Math.min(Integer.MAX_VALUE - 8L, buffer.length * 2L)));
+        }
+    }
+}
@@ -0,0 +1,322 @@
+package com.deBijenkorf.imageresizeservice.util;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Separable two-pass convolution resampler working directly on {@code int[]} RGB rasters: every row is first
+ * resampled horizontally, then every column vertically. The filter is widened by the downscale ratio so that all
+ * source pixels contribute, which avoids the aliasing of a single bicubic pass. Filter weights are precomputed in
+ * fixed point per source and target size, and cached. Large sources can be resampled in parallel row bands.
+ */
+public class ConvolutionResamplingEngine implements ResamplingEngine {
+
+    public static final ConvolutionResamplingEngine LANCZOS = new ConvolutionResamplingEngine(Filter.LANCZOS3);
+    public static final ConvolutionResamplingEngine MITCHELL = new ConvolutionResamplingEngine(Filter.MITCHELL);
+
+    private static final int PRECISION_BITS = 14;
+    private static final int ROUNDING = 1 << (PRECISION_BITS - 1);
+    // Below this many rows a band costs more to schedule than to resample
+    private static final int MINIMUM_BAND_ROWS = 32;
+
+    private final Filter filter;
+    private final Cache<Long, WeightTable> weightTables = Caffeine.newBuilder().maximumSize(256).build();
+
+    ConvolutionResamplingEngine(Filter filter) {
+        this.filter = filter;
+    }
+
+    @Override
+    public void resample(BufferedImage source, BufferedImage target) {
+        resample(source, target, RasterPool.UNPOOLED, null);
+    }
+
+    /**
+     * Runs both passes in row bands on the pool, or serially without one. Each row of a pass only reads the
+     * shared source of the pass and writes its own row, so the bands produce exactly the serial output.
+     */
+    @Override
+    public void resample(BufferedImage source, BufferedImage target, RasterPool buffers, ForkJoinPool pool) {
+        int sourceWidth = source.getWidth();
+        int sourceHeight = source.getHeight();
+        int targetWidth = target.getWidth();
+        int targetHeight = target.getHeight();
+
+        int[] sourcePixels = rgbPixels(source, buffers);
+        if (sourceWidth == targetWidth && sourceHeight == targetHeight) {
+            // Mitchell does not interpolate, both passes would only blur the image
+            copy(sourcePixels, target);
+            return;
+        }
+        WeightTable horizontal = weights(sourceWidth, targetWidth);
+        WeightTable vertical = weights(sourceHeight, targetHeight);
+
+        int[] intermediate = buffers.pixels(RasterPool.Slot.INTERMEDIATE, targetWidth * sourceHeight);
+        forEachBand(pool, sourceHeight, (fromRow, toRow) ->
+                horizontalPass(sourcePixels, sourceWidth, intermediate, targetWidth, horizontal, fromRow, toRow));
+
+        int[] targetPixels = directPixels(target);
+        int[] output = targetPixels != null ? targetPixels : new int[targetWidth * targetHeight];
+        forEachBand(pool, targetHeight, (fromRow, toRow) ->
+                verticalPass(intermediate, output, targetWidth, vertical, fromRow, toRow));
+        if (targetPixels == null) {
+            target.setRGB(0, 0, targetWidth, targetHeight, output, 0, targetWidth);
+        }
+    }
+
+    private static void copy(int[] pixels, BufferedImage target) {
+        int[] targetPixels = directPixels(target);
+        if (targetPixels != null) {
+            System.arraycopy(pixels, 0, targetPixels, 0, target.getWidth() * target.getHeight());
+        } else {
+            target.setRGB(0, 0, target.getWidth(), target.getHeight(), pixels, 0, target.getWidth());
+        }
+    }
+
+    private static void forEachBand(ForkJoinPool pool, int rows, RowBand band) {
+        if (pool == null || rows < 2 * MINIMUM_BAND_ROWS) {
+            band.resample(0, rows);
+            return;
+        }
+        int bandRows = Math.max(MINIMUM_BAND_ROWS, rows / (pool.getParallelism() * 4));
+        pool.invoke(new BandTask(band, 0, rows, bandRows));
+    }
+
+    void horizontalPass(int[] source, int sourceWidth, int[] target, int targetWidth, WeightTable weights,
+                        int fromRow, int toRow) {
+        for (int y = fromRow; y < toRow; y++) {
+            int sourceRow = y * sourceWidth;
+            int targetRow = y * targetWidth;
+            for (int x = 0; x < targetWidth; x++) {
+                int start = weights.start[x];
+                int count = weights.count[x];
+                int offset = x * weights.stride;
+                int red = ROUNDING;
+                int green = ROUNDING;
+                int blue = ROUNDING;
+                for (int k = 0; k < count; k++) {
+                    int weight = weights.weights[offset + k];
+                    int pixel = source[sourceRow + start + k];
+                    red += weight * ((pixel >> 16) & 0xff);
+                    green += weight * ((pixel >> 8) & 0xff);
+                    blue += weight * (pixel & 0xff);
+                }
+                target[targetRow + x] = pack(red, green, blue);
+            }
+        }
+    }
+
+    void verticalPass(int[] source, int[] target, int width, WeightTable weights, int fromRow, int toRow) {
+        int[] red = new int[width];
+        int[] green = new int[width];
+        int[] blue = new int[width];
+        for (int y = fromRow; y < toRow; y++) {
+            Arrays.fill(red, ROUNDING);
+            Arrays.fill(green, ROUNDING);
+            Arrays.fill(blue, ROUNDING);
+            int start = weights.start[y];
+            int count = weights.count[y];
+            int offset = y * weights.stride;
+            for (int k = 0; k < count; k++) {
+                int weight = weights.weights[offset + k];
+                int sourceRow = (start + k) * width;
+                for (int x = 0; x < width; x++) {
+                    int pixel = source[sourceRow + x];
+                    red[x] += weight * ((pixel >> 16) & 0xff);
+                    green[x] += weight * ((pixel >> 8) & 0xff);
+                    blue[x] += weight * (pixel & 0xff);
+                }
+            }
+            int targetRow = y * width;
+            for (int x = 0; x < width; x++) {
+                target[targetRow + x] = pack(red[x], green[x], blue[x]);
+            }
+        }
+    }
+
+    WeightTable weights(int sourceSize, int targetSize) {
+        return weightTables.get(((long) sourceSize << 32) | targetSize,
+                key -> WeightTable.create(filter, sourceSize, targetSize));
+    }
+
+    private static int pack(int red, int green, int blue) {
+        return (clamp(red >> PRECISION_BITS) << 16) | (clamp(green >> PRECISION_BITS) << 8) | clamp(blue >> PRECISION_BITS);
+    }
+
+    private static int clamp(int channel) {
+        return channel < 0 ? 0 : Math.min(channel, 255);
+    }
+
+    /**
+     * RGB pixels of the source, composited over black like {@code Graphics2D.drawImage} onto a new RGB canvas.
+     */
+    static int[] rgbPixels(BufferedImage source, RasterPool buffers) {
+        int[] pixels = directPixels(source);
+        if (pixels != null) {
+            return pixels;
+        }
+        BufferedImage rgb = buffers.rgbImage(RasterPool.Slot.SOURCE, source.getWidth(), source.getHeight());
+        Graphics2D graphics = rgb.createGraphics();
+        graphics.drawImage(source, 0, 0, null);
+        graphics.dispose();
+        return directPixels(rgb);
+    }
+
+    /**
+     * The backing array of an RGB image whose raster covers its whole data buffer, {@code null} otherwise. The
+     * array of a pooled image may be longer than its pixels.
+     */
+    static int[] directPixels(BufferedImage image) {
+        if (image.getType() != BufferedImage.TYPE_INT_RGB) {
+            return null;
+        }
+        WritableRaster raster = image.getRaster();
+        if (raster.getParent() != null
+                || !(raster.getDataBuffer() instanceof DataBufferInt dataBuffer)
+                || !(raster.getSampleModel() instanceof SinglePixelPackedSampleModel sampleModel)
+                || sampleModel.getScanlineStride() != image.getWidth()
+                || dataBuffer.getOffset() != 0
+                || dataBuffer.getSize() != image.getWidth() * image.getHeight()) {
+            return null;
+        }
+        return dataBuffer.getData();
+    }
+
+    @FunctionalInterface
+    private interface RowBand {
+        void resample(int fromRow, int toRow);
+    }
+
+    /**
+     * Halves its rows until a band is small enough to resample, so idle workers steal the other halves.
+     */
+    private static final class BandTask extends RecursiveAction {
+
+        private final RowBand band;
+        private final int fromRow;
+        private final int toRow;
+        private final int bandRows;
+
+        private BandTask(RowBand band, int fromRow, int toRow, int bandRows) {
+            this.band = band;
+            this.fromRow = fromRow;
+            this.toRow = toRow;
+            this.bandRows = bandRows;
+        }
+
+        @Override
+        protected void compute() {
+            if (toRow - fromRow <= bandRows) {
+                band.resample(fromRow, toRow);
+                return;
+            }
+            int middle = (fromRow + toRow) >>> 1;
+            invokeAll(new BandTask(band, fromRow, middle, bandRows), new BandTask(band, middle, toRow, bandRows));
+        }
+    }
+
+    /**
+     * For every target pixel the first contributing source pixel, the number of contributing pixels and their
+     * fixed-point weights, which sum to one.
+     */
+    static final class WeightTable {
+
+        final int[] start;
+        final int[] count;
+        final int[] weights;
+        final int stride;
+
+        private WeightTable(int[] start, int[] count, int[] weights, int stride) {
+            this.start = start;
+            this.count = count;
+            this.weights = weights;
+            this.stride = stride;
+        }
+
+        static WeightTable create(Filter filter, int sourceSize, int targetSize) {
+            double scale = (double) targetSize / sourceSize;
+            double filterScale = Math.max(1.0, 1.0 / scale);
+            double support = filter.support * filterScale;
+            int stride = (int) Math.ceil(support * 2) + 2;
+            int[] start = new int[targetSize];
+            int[] count = new int[targetSize];
+            int[] weights = new int[targetSize * stride];
+            double[] values = new double[stride];
+
+            for (int i = 0; i < targetSize; i++) {
+                double center = (i + 0.5) / scale;
+                int left = Math.max(0, (int) Math.floor(center - support));
+                int right = Math.min(sourceSize, (int) Math.ceil(center + support));
+                int n = Math.min(right - left, stride);
+                double sum = 0;
+                for (int k = 0; k < n; k++) {
+                    values[k] = filter.apply((left + k + 0.5 - center) / filterScale);
+                    sum += values[k];
+                }
+                if (sum == 0) {
+                    sum = 1;
+                }
+                for (int k = 0; k < n; k++) {
+                    weights[i * stride + k] = (int) Math.round(values[k] / sum * (1 << PRECISION_BITS));
+                }
+                start[i] = left;
+                count[i] = n;
+            }
+            return new WeightTable(start, count, weights, stride);
+        }
+    }
+
+    enum Filter {
+
+        LANCZOS3(3.0) {
+            @Override
+            double apply(double x) {
+                x = Math.abs(x);
+                if (x < 1e-8) {
+                    return 1.0;
+                }
+                if (x >= support) {
+                    return 0.0;
+                }
+                double px = Math.PI * x;
+                return support * Math.sin(px) * Math.sin(px / support) / (px * px);
+            }
+        },
+
+        // Mitchell-Netravali with B = C = 1/3
+        MITCHELL(2.0) {
+            private static final double B = 1.0 / 3.0;
+            private static final double C = 1.0 / 3.0;
+
+            @Override
+            double apply(double x) {
+                x = Math.abs(x);
+                if (x < 1.0) {
+                    return ((12 - 9 * B - 6 * C) * x * x * x + (-18 + 12 * B + 6 * C) * x * x + (6 - 2 * B)) / 6;
+                }
+                if (x < 2.0) {
+                    return ((-B - 6 * C) * x * x * x + (6 * B + 30 * C) * x * x + (-12 * B - 48 * C) * x
+                            + (8 * B + 24 * C)) / 6;
+                }
+                return 0.0;
+            }
+        };
+
+        final double support;
+
+        Filter(double support) {
+            this.support = support;
+        }
+
+        abstract double apply(double x);
+    }
+}
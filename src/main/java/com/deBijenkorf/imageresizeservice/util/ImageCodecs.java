@@ -0,0 +1,141 @@
+package com.deBijenkorf.imageresizeservice.util;
+
+import com.deBijenkorf.imageresizeservice.model.ImageType;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Per-thread pool of JPEG and PNG readers and writers, with the write parameters of every quality already built.
+ * Looking codecs up walks the {@code IIORegistry} and creating them allocates their native state, both of which
+ * showed up on every resize; pooled codecs are only reset between uses. The pool is per thread because codecs are
+ * not thread-safe and every decode and encode runs on one of the few threads of the
+ * {@link com.deBijenkorf.imageresizeservice.service.ResizeExecutor}.
+ */
+@Slf4j
+final class ImageCodecs {
+
+    private static final byte[] PNG_SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+    private static final ThreadLocal<ImageCodecs> CODECS = ThreadLocal.withInitial(ImageCodecs::new);
+
+    static {
+        // Encoded images are always in memory, never let ImageIO spill streams to temporary files
+        ImageIO.setUseCache(false);
+    }
+
+    private final Map<String, ImageReader> readers = new HashMap<>();
+    private final Map<ImageType, ImageWriter> writers = new EnumMap<>(ImageType.class);
+    private final Map<ImageType, Map<Float, ImageWriteParam>> writeParams = new EnumMap<>(ImageType.class);
+
+    private ImageCodecs() {
+    }
+
+    /**
+     * Applies the function to a reader positioned on the image, returns {@code null} when the format is not
+     * supported. JPEG and PNG readers come from the pool, other formats are looked up in the registry.
+     */
+    static <T> T read(byte[] image, ReaderFunction<T> function) throws IOException {
+        return CODECS.get().readWithPooledReader(image, function);
+    }
+
+    static byte[] write(BufferedImage image, ImageType imageType, float quality, int initialCapacity)
+            throws IOException {
+        return CODECS.get().writeWithPooledWriter(image, imageType, quality, initialCapacity);
+    }
+
+    private <T> T readWithPooledReader(byte[] image, ReaderFunction<T> function) throws IOException {
+        String formatName = formatName(image);
+        ImageReader reader = formatName == null ? null : readers.computeIfAbsent(formatName, ImageCodecs::newReader);
+        try (ByteArrayImageInputStream input = new ByteArrayImageInputStream(image)) {
+            if (reader == null) {
+                return readWithRegistryReader(input, function);
+            }
+            try {
+                reader.setInput(input, true, true);
+                return function.apply(reader);
+            } finally {
+                reader.reset();
+            }
+        }
+    }
+
+    private static <T> T readWithRegistryReader(ByteArrayImageInputStream input, ReaderFunction<T> function)
+            throws IOException {
+        Iterator<ImageReader> registryReaders = ImageIO.getImageReaders(input);
+        if (!registryReaders.hasNext()) {
+            return null;
+        }
+        ImageReader reader = registryReaders.next();
+        try {
+            reader.setInput(input, true, true);
+            return function.apply(reader);
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    private byte[] writeWithPooledWriter(BufferedImage image, ImageType imageType, float quality, int initialCapacity)
+            throws IOException {
+        ImageWriter writer = writers.computeIfAbsent(imageType, ImageCodecs::newWriter);
+        ImageWriteParam param = writeParams.computeIfAbsent(imageType, type -> new HashMap<>())
+                .computeIfAbsent(quality, q -> newWriteParam(writer, q));
+        ByteArrayImageOutputStream output = new ByteArrayImageOutputStream(initialCapacity);
+        try (output) {
+            writer.setOutput(output);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.reset();
+        }
+        return output.toByteArray();
+    }
+
+    private static ImageWriteParam newWriteParam(ImageWriter writer, float quality) {
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        if (param.canWriteCompressed()) {
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality);
+        }
+        return param;
+    }
+
+    private static ImageReader newReader(String formatName) {
+        log.debug("Creating {} reader for {}", formatName, Thread.currentThread().getName());
+        return ImageIO.getImageReadersByFormatName(formatName).next();
+    }
+
+    private static ImageWriter newWriter(ImageType imageType) {
+        log.debug("Creating {} writer for {}", imageType, Thread.currentThread().getName());
+        return ImageIO.getImageWritersByFormatName(imageType.getExtension()).next();
+    }
+
+    // Pooled formats are recognised by their signature, anything else goes through the registry
+    private static String formatName(byte[] image) {
+        if (image.length > 2 && image[0] == (byte) 0xff && image[1] == (byte) 0xd8) {
+            return "jpeg";
+        }
+        if (image.length > PNG_SIGNATURE.length) {
+            for (int i = 0; i < PNG_SIGNATURE.length; i++) {
+                if (image[i] != PNG_SIGNATURE[i]) {
+                    return null;
+                }
+            }
+            return "png";
+        }
+        return null;
+    }
+
+    @FunctionalInterface
+    interface ReaderFunction<T> {
+        T apply(ImageReader reader) throws IOException;
+    }
+}
@@ -0,0 +1,29 @@
+package com.deBijenkorf.imageresizeservice.util;
+
+import com.deBijenkorf.imageresizeservice.model.ImageType;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * What the header of an encoded image tells before any pixel is decoded.
+ */
+@AllArgsConstructor
+@Getter
+public class ImageHeader {
+
+    private final int width;
+    private final int height;
+    private final String formatName;
+    // Whether the decoded pixels carry an alpha channel
+    private final boolean alpha;
+
+    /**
+     * The variant type with the same encoding, or null when the format is neither JPEG nor PNG.
+     */
+    public ImageType imageType() {
+        if ("png".equalsIgnoreCase(formatName)) {
+            return ImageType.PNG;
+        }
+        return "jpeg".equalsIgnoreCase(formatName) || "jpg".equalsIgnoreCase(formatName) ? ImageType.JPG : null;
+    }
+}
@@ -0,0 +1,61 @@
+package com.deBijenkorf.imageresizeservice.util;
+
+import com.deBijenkorf.imageresizeservice.config.ImageConfig;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+
+/**
+ * Timers and byte-size summaries of the stages of the image pipeline, published with percentile histograms so
+ * that latency and size distributions can be aggregated across instances:
+ * <ul>
+ *     <li>{@code image.request}: a whole variant lookup, tagged by type, scale and outcome (cache, s3, render, failure)</li>
+ *     <li>{@code image.s3.get} and {@code image.s3.put}: Amazon S3 calls, tagged by type and outcome</li>
+ *     <li>{@code image.source.download}: downloads of originals, tagged by outcome</li>
+ *     <li>{@code image.decode}, {@code image.render} and {@code image.encode}: resizing, tagged by scale</li>
+ *     <li>{@code image.original.size} and {@code image.variant.size}: encoded sizes in bytes</li>
+ * </ul>
+ */
+@Component
+public class ImagePipelineMetrics {
+
+    public static final String TYPE = "type";
+    public static final String SCALE = "scale";
+    public static final String OUTCOME = "outcome";
+
+    private final MeterRegistry meterRegistry;
+    private final String scale;
+
+    public ImagePipelineMetrics(MeterRegistry meterRegistry, ImageConfig imageConfig) {
+        this.meterRegistry = meterRegistry;
+        this.scale = String.valueOf(imageConfig.getScaleType());
+    }
+
+    public Timer.Sample start() {
+        return Timer.start(meterRegistry);
+    }
+
+    public void stop(Timer.Sample sample, String name, String... tags) {
+        sample.stop(Timer.builder(name)
+                .tags(tags)
+                .publishPercentileHistogram()
+                .register(meterRegistry));
+    }
+
+    public void recordSize(String name, long bytes, String... tags) {
+        DistributionSummary.builder(name)
+                .baseUnit("bytes")
+                .tags(tags)
+                .publishPercentileHistogram()
+                .register(meterRegistry)
+                .record(bytes);
+    }
+
+    /**
+     * The configured scale type, the same for every predefined type.
+     */
+    public String scale() {
+        return scale;
+    }
+}
@@ -0,0 +1,17 @@
+package com.deBijenkorf.imageresizeservice.util;
+
+import static java.io.File.separator;
+
+/**
+ * Turns an image reference as given by a client or a pre-warm manifest into the file name the variants are
+ * stored under, so that both entry points find and render the same objects.
+ */
+public final class ImageReferences {
+
+    private ImageReferences() {
+    }
+
+    public static String normalize(String reference) {
+        return reference.replaceAll(separator, "_");
+    }
+}
@@ -1,96 +1,227 @@
 package com.deBijenkorf.imageresizeservice.util;
 
 import com.deBijenkorf.imageresizeservice.config.ImageConfig;
+import com.deBijenkorf.imageresizeservice.config.ImageResizeExecutorConfig;
+import com.deBijenkorf.imageresizeservice.model.ImageContent;
 import com.deBijenkorf.imageresizeservice.model.ImageType;
-import lombok.AllArgsConstructor;
+import com.deBijenkorf.imageresizeservice.model.ScaleType;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Component;
 
-import javax.imageio.IIOImage;
-import javax.imageio.ImageIO;
-import javax.imageio.ImageWriteParam;
-import javax.imageio.ImageWriter;
-import javax.imageio.stream.MemoryCacheImageOutputStream;
 import java.awt.*;
 import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.time.Instant;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+import static com.deBijenkorf.imageresizeservice.util.ImagePipelineMetrics.SCALE;
 
 @Slf4j
 @Component
-@AllArgsConstructor
 public class ImageResizeUtil {
 
     public static final float SKEW_RATIO = 0.2f;
 
     private final ImageConfig imageConfig;
 
-    public BufferedImage resize(BufferedImage originalImage) throws IOException {
+    private final ImageUtil imageUtil;
+
+    private final ImagePipelineMetrics metrics;
+
+    private final ImageResizeExecutorConfig resizeExecutorConfig;
+
+    private final RasterPool rasterPool;
+
+    // Workers for the row bands of large resamples, as many as resize threads
+    private final ForkJoinPool bandPool;
+
+    public ImageResizeUtil(ImageConfig imageConfig, ImageUtil imageUtil, ImagePipelineMetrics metrics,
+                           ImageResizeExecutorConfig resizeExecutorConfig) {
+        this.imageConfig = imageConfig;
+        this.imageUtil = imageUtil;
+        this.metrics = metrics;
+        this.resizeExecutorConfig = resizeExecutorConfig;
+        this.rasterPool = new RasterPool(resizeExecutorConfig.getPooledBuffers(),
+                resizeExecutorConfig.getMaximumPooledPixels());
+        this.bandPool = new ForkJoinPool(resizeExecutorConfig.poolSize(), pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("image-resize-band-" + thread.getPoolIndex());
+            return thread;
+        }, null, false);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        bandPool.shutdown();
+    }
+
+    /**
+     * Resizes an encoded original. Only the part of the original that ends up in the variant is decoded and, when
+     * the variant is scaled down, it is decoded subsampled so that large originals never get fully decoded. An
+     * original that already is the variant, as told by its header, is returned as is without being decoded.
+     */
+    public ImageContent resize(byte[] originalImage) throws IOException {
+        ImageHeader header = imageUtil.readHeader(originalImage);
+        if (header == null) {
+            throw new IOException("Unsupported image format");
+        }
+        if (isVariant(header)) {
+            return new ImageContent(originalImage, imageType().getMediaType(), null, Instant.now());
+        }
+        Rectangle region = sourceRegion(header.getWidth(), header.getHeight());
+        Timer.Sample decoding = metrics.start();
+        BufferedImage visiblePart = imageUtil.bufferedImage(originalImage, region, subsampling(region));
+        metrics.stop(decoding, "image.decode", SCALE, metrics.scale());
+        return render(visiblePart, region, header.getWidth(), header.getHeight());
+    }
+
+    /**
+     * Filling an opaque original of exactly the variant size covers the whole canvas with the original pixels, so
+     * the variant would only be a re-encoding of the original in the same format.
+     */
+    boolean isVariant(ImageHeader header) {
+        return imageConfig.getScaleType() == ScaleType.Fill
+                && header.getWidth() == imageConfig.getWidth()
+                && header.getHeight() == imageConfig.getHeight()
+                && !header.isAlpha()
+                && header.imageType() == imageType();
+    }
+
+    public ImageContent resize(BufferedImage originalImage) throws IOException {
+        Rectangle region = sourceRegion(originalImage.getWidth(), originalImage.getHeight());
+        BufferedImage visiblePart = originalImage.getSubimage(region.x, region.y, region.width, region.height);
+        return render(visiblePart, region, originalImage.getWidth(), originalImage.getHeight());
+    }
+
+    private ImageContent render(BufferedImage visiblePart, Rectangle region, int originalWidth, int originalHeight)
+            throws IOException {
+        Timer.Sample rendering = metrics.start();
+        BufferedImage resizedImage = draw(visiblePart, region, originalWidth, originalHeight);
+        metrics.stop(rendering, "image.render", SCALE, metrics.scale());
+        return encode(resizedImage);
+    }
+
+    private BufferedImage draw(BufferedImage visiblePart, Rectangle region, int originalWidth, int originalHeight) {
+
+        if (imageConfig.getScaleType() == ScaleType.Crop && isVariantSize(visiblePart) && isOpaqueRgb(visiblePart)) {
+            // Nothing to scale, the visible part is encoded as decoded
+            return visiblePart;
+        }
+
+        // Pooled, it is encoded before the next resize on this thread
+        BufferedImage resizedImage = rasterPool.rgbImage(RasterPool.Slot.CANVAS, imageConfig.getWidth(),
+                imageConfig.getHeight());
+
+        if (imageConfig.getScaleType() == ScaleType.Crop) {
+            ResamplingEngine.of(imageConfig.getResampling()).resample(visiblePart, resizedImage, rasterPool,
+                    isParallel(visiblePart.getWidth(), visiblePart.getHeight()) ? bandPool : null);
+            return resizedImage;
+        }
 
-        BufferedImage resizedImage = new BufferedImage(imageConfig.getWidth(), imageConfig.getHeight()
-                , BufferedImage.TYPE_INT_RGB);
         Graphics2D graphics = resizedImage.createGraphics();
         graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
 
-        switch (imageConfig.getScaleType()) {
-            case Crop -> crop(originalImage, graphics);
-            case Fill -> fill(originalImage, graphics);
-            default -> skew(originalImage, graphics);
+        if (imageConfig.getScaleType() == ScaleType.Fill) {
+            fill(visiblePart, region, originalWidth, originalHeight, graphics);
+        } else {
+            skew(visiblePart, region, graphics);
         }
 
         graphics.dispose();
-        return resizeQuality(resizedImage);
-    }
-
-    private BufferedImage resizeQuality(BufferedImage resizedImage) throws IOException {
-        float quality = imageConfig.getQuality() / 100f;
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        try {
-            ImageWriter writer = ImageIO.getImageWritersByFormatName(imageType()).next();
-            ImageWriteParam param = writer.getDefaultWriteParam();
-            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
-            param.setCompressionQuality(quality);
-            writer.setOutput(new MemoryCacheImageOutputStream(baos));
-            writer.write(null, new IIOImage(resizedImage, null, null), param);
-            writer.dispose();
-
-        } catch (IOException e) {
-            log.error("fail to parse the image", e);
+        return resizedImage;
+    }
+
+    /**
+     * Counts the pixels of the decoded part that gets resampled. Subsampling keeps it close to twice the variant
+     * size however large the original is, so only large variants are worth splitting.
+     */
+    boolean isParallel(int decodedWidth, int decodedHeight) {
+        return (long) decodedWidth * decodedHeight > resizeExecutorConfig.getParallelThreshold();
+    }
+
+    private boolean isVariantSize(BufferedImage image) {
+        return image.getWidth() == imageConfig.getWidth() && image.getHeight() == imageConfig.getHeight();
+    }
+
+    // Pixel layouts both encoders write as they are, any other one is first drawn on an RGB canvas
+    private static boolean isOpaqueRgb(BufferedImage image) {
+        return switch (image.getType()) {
+            case BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_BGR, BufferedImage.TYPE_3BYTE_BGR -> true;
+            default -> false;
+        };
+    }
+
+    /**
+     * The part of the original, in original pixels, that is visible in the variant for the configured scale type.
+     */
+    Rectangle sourceRegion(int originalWidth, int originalHeight) {
+        int width = imageConfig.getWidth();
+        int height = imageConfig.getHeight();
+        return switch (imageConfig.getScaleType()) {
+            case Crop -> new Rectangle(originalWidth / 4, originalHeight / 4,
+                    Math.max(1, originalWidth * 3 / 4 - originalWidth / 4),
+                    Math.max(1, originalHeight * 3 / 4 - originalHeight / 4));
+            case Fill -> {
+                int x = Math.max(0, -((width - originalWidth) / 2));
+                int y = Math.max(0, -((height - originalHeight) / 2));
+                yield new Rectangle(x, y, Math.min(originalWidth - x, width), Math.min(originalHeight - y, height));
+            }
+            default -> new Rectangle(0, 0, Math.min(originalWidth, width), Math.min(originalHeight, height));
+        };
+    }
+
+    /**
+     * Largest subsampling that still decodes at least as many pixels as the variant needs, twice as many for the
+     * convolution engines so their filters still have samples to average. Only cropping scales the original, fill
+     * and skew draw it pixel for pixel.
+     */
+    int subsampling(Rectangle region) {
+        if (imageConfig.getScaleType() != ScaleType.Crop) {
+            return 1;
         }
-        return ImageIO.read(new ByteArrayInputStream(baos.toByteArray()));
+        int oversampling = ResamplingEngine.of(imageConfig.getResampling()) instanceof ConvolutionResamplingEngine ? 2 : 1;
+        return Math.max(1, Math.min(region.width / (imageConfig.getWidth() * oversampling),
+                region.height / (imageConfig.getHeight() * oversampling)));
     }
 
-    private String imageType() {
-        return ImageType.JPG == imageConfig.getType() ? "jpg" : "png";
+    /**
+     * Encodes the rendered variant once, at the configured quality and image type. The resulting payload is
+     * the one uploaded to Amazon S3 and returned to the client.
+     */
+    ImageContent encode(BufferedImage resizedImage) throws IOException {
+        Timer.Sample encoding = metrics.start();
+        ImageType imageType = imageType();
+        byte[] encoded = ImageCodecs.write(resizedImage, imageType, imageConfig.getQuality() / 100f,
+                resizedImage.getWidth() * resizedImage.getHeight() / 4);
+        metrics.stop(encoding, "image.encode", SCALE, metrics.scale());
+        return new ImageContent(encoded, imageType.getMediaType(), null, Instant.now());
     }
 
-    private void skew(BufferedImage originalImage, Graphics2D graphics) {
+    private ImageType imageType() {
+        return ImageType.PNG == imageConfig.getType() ? ImageType.PNG : ImageType.JPG;
+    }
+
+    private void skew(BufferedImage visiblePart, Rectangle region, Graphics2D graphics) {
         AffineTransform skewTransform = AffineTransform.getShearInstance(SKEW_RATIO, 0);
         graphics.setTransform(skewTransform);
-        graphics.drawImage(originalImage, 0, 0, null);
+        graphics.drawImage(visiblePart, region.x, region.y, null);
     }
 
-    private void fill(BufferedImage originalImage, Graphics2D graphics) {
+    private void fill(BufferedImage visiblePart, Rectangle region, int originalWidth, int originalHeight,
+                      Graphics2D graphics) {
         Color color = Color.decode(imageConfig.getFillColor());
 
         graphics.setColor(color);
         graphics.fillRect(0, 0, imageConfig.getWidth(), imageConfig.getHeight());
-        graphics.drawImage(originalImage,
-                (imageConfig.getWidth() - originalImage.getWidth()) / 2,
-                (imageConfig.getHeight() - originalImage.getHeight()) / 2,
-                originalImage.getWidth(),
-                originalImage.getHeight(), null);
-
-    }
+        graphics.drawImage(visiblePart,
+                (imageConfig.getWidth() - originalWidth) / 2 + region.x,
+                (imageConfig.getHeight() - originalHeight) / 2 + region.y,
+                visiblePart.getWidth(),
+                visiblePart.getHeight(), null);
 
-    private void crop(BufferedImage originalImage, Graphics2D graphics) {
-        graphics.drawImage(originalImage, 0, 0,
-                imageConfig.getWidth(),
-                imageConfig.getHeight(),
-                originalImage.getWidth() / 4,
-                originalImage.getHeight() / 4, originalImage.getWidth() * 3 / 4,
-                originalImage.getHeight() * 3 / 4, null);
     }
 }
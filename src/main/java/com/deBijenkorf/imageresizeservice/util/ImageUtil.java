@@ -4,22 +4,39 @@ import lombok.AllArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Component;
 
-import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageTypeSpecifier;
+import java.awt.*;
 import java.awt.image.BufferedImage;
-import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
+import java.util.Iterator;
 
 @Slf4j
 @Component
 @AllArgsConstructor
 public class ImageUtil {
 
-    public BufferedImage bufferedImage(InputStream inputStream) throws IOException {
-        return ImageIO.read(inputStream);
+    /**
+     * Reads the dimensions, format and pixel type from the image header, returns {@code null} when the format is
+     * not supported.
+     */
+    public ImageHeader readHeader(byte[] image) throws IOException {
+        return ImageCodecs.read(image, reader -> {
+            Iterator<ImageTypeSpecifier> imageTypes = reader.getImageTypes(0);
+            boolean alpha = imageTypes.hasNext() && imageTypes.next().getColorModel().hasAlpha();
+            return new ImageHeader(reader.getWidth(0), reader.getHeight(0), reader.getFormatName(), alpha);
+        });
     }
 
-    public boolean writeImage(BufferedImage image, String extension, File file) throws IOException {
-        return ImageIO.write(image, extension, file);
+    /**
+     * Decodes only the given region of the image, keeping one pixel out of {@code subsampling} in each direction.
+     */
+    public BufferedImage bufferedImage(byte[] image, Rectangle sourceRegion, int subsampling) throws IOException {
+        return ImageCodecs.read(image, reader -> {
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceRegion(sourceRegion);
+            param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+            return reader.read(0, param);
+        });
     }
 }
@@ -0,0 +1,21 @@
+package com.deBijenkorf.imageresizeservice.util;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+
+/**
+ * Single {@code Graphics2D.drawImage} with bicubic interpolation.
+ */
+public class Java2DResamplingEngine implements ResamplingEngine {
+
+    public static final Java2DResamplingEngine INSTANCE = new Java2DResamplingEngine();
+
+    @Override
+    public void resample(BufferedImage source, BufferedImage target) {
+        Graphics2D graphics = target.createGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+        graphics.drawImage(source, 0, 0, target.getWidth(), target.getHeight(),
+                0, 0, source.getWidth(), source.getHeight(), null);
+        graphics.dispose();
+    }
+}
@@ -0,0 +1,100 @@
+package com.deBijenkorf.imageresizeservice.util;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Per-thread {@code int[]} pixel buffers reused by every resize on the thread, so that a miss does not allocate
+ * its destination canvas and the intermediate images of the convolution engines again. Those are several
+ * megabytes for large variants and land in G1 humongous regions. One buffer per {@link Slot} grows to the largest
+ * size requested, up to the maximum pooled pixels; larger requests get a fresh buffer.
+ * <p>
+ * A pooled buffer is only valid until the same slot is requested again on the same thread, so nothing drawn into
+ * it may escape the resize that requested it. A disabled pool allocates every buffer, to compare allocations.
+ */
+public final class RasterPool {
+
+    /**
+     * Allocates every buffer, for resampling outside of a resize.
+     */
+    static final RasterPool UNPOOLED = new RasterPool(false, 0);
+
+    enum Slot {
+        // The variant being drawn, encoded straight from the buffer
+        CANVAS,
+        // A source that is not INT_RGB, converted before convolution
+        SOURCE,
+        // The horizontally resampled rows of the convolution engines
+        INTERMEDIATE
+    }
+
+    private static final DirectColorModel RGB = new DirectColorModel(24, 0xff0000, 0x00ff00, 0x0000ff);
+
+    private final boolean enabled;
+    private final int maximumPooledPixels;
+    private final ThreadLocal<Buffers> buffers = ThreadLocal.withInitial(Buffers::new);
+
+    RasterPool(boolean enabled, int maximumPooledPixels) {
+        this.enabled = enabled;
+        this.maximumPooledPixels = maximumPooledPixels;
+    }
+
+    /**
+     * A buffer of at least {@code length} pixels, with unspecified content.
+     */
+    int[] pixels(Slot slot, int length) {
+        if (!enabled || length > maximumPooledPixels) {
+            return new int[length];
+        }
+        return buffers.get().buffer(slot, length);
+    }
+
+    /**
+     * A black INT_RGB image of the given size backed by the pooled buffer of the slot.
+     */
+    BufferedImage rgbImage(Slot slot, int width, int height) {
+        int length = Math.multiplyExact(width, height);
+        if (!enabled || length > maximumPooledPixels) {
+            return new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        }
+        return buffers.get().image(slot, width, height);
+    }
+
+    private static final class Buffers {
+
+        private final Map<Slot, int[]> pixels = new EnumMap<>(Slot.class);
+        private final Map<Slot, BufferedImage> images = new EnumMap<>(Slot.class);
+
+        private int[] buffer(Slot slot, int length) {
+            int[] buffer = pixels.get(slot);
+            if (buffer == null || buffer.length < length) {
+                buffer = new int[length];
+                pixels.put(slot, buffer);
+                images.remove(slot);
+            }
+            return buffer;
+        }
+
+        private BufferedImage image(Slot slot, int width, int height) {
+            int length = width * height;
+            int[] buffer = buffer(slot, length);
+            BufferedImage image = images.get(slot);
+            if (image == null || image.getWidth() != width || image.getHeight() != height) {
+                // The data buffer is limited to the image, its array may be longer
+                WritableRaster raster = Raster.createPackedRaster(new DataBufferInt(buffer, length), width, height,
+                        width, RGB.getMasks(), new Point());
+                image = new BufferedImage(RGB, raster, false, null);
+                images.put(slot, image);
+            }
+            Arrays.fill(buffer, 0, length, 0);
+            return image;
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.deBijenkorf.imageresizeservice.util;
+
+import com.deBijenkorf.imageresizeservice.model.ResamplingType;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Scales a whole source image onto a whole target image.
+ */
+public interface ResamplingEngine {
+
+    void resample(BufferedImage source, BufferedImage target);
+
+    /**
+     * Resamples into working buffers from the given raster pool and, when a fork/join pool is given, in parallel
+     * on it. Engines without working buffers or that cannot split their work ignore them.
+     */
+    default void resample(BufferedImage source, BufferedImage target, RasterPool buffers, ForkJoinPool pool) {
+        resample(source, target);
+    }
+
+    static ResamplingEngine of(ResamplingType resamplingType) {
+        if (resamplingType == null) {
+            return Java2DResamplingEngine.INSTANCE;
+        }
+        return switch (resamplingType) {
+            case Lanczos -> ConvolutionResamplingEngine.LANCZOS;
+            case Mitchell -> ConvolutionResamplingEngine.MITCHELL;
+            default -> Java2DResamplingEngine.INSTANCE;
+        };
+    }
+}
@@ -2,6 +2,9 @@ package com.deBijenkorf.imageresizeservice.controller;
 
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.model.*;
+import com.deBijenkorf.imageresizeservice.dao.ImageCache;
+import com.deBijenkorf.imageresizeservice.dao.ImageExistenceIndex;
+import com.deBijenkorf.imageresizeservice.model.ImageContent;
 import com.deBijenkorf.imageresizeservice.service.ConnectionService;
 import com.deBijenkorf.imageresizeservice.service.ImageResizeService;
 import com.deBijenkorf.imageresizeservice.util.ImageResizeUtil;
@@ -11,25 +14,36 @@ import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.core.io.InputStreamResource;
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.web.servlet.MockMvc;
 import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
 import org.springframework.test.web.servlet.result.MockMvcResultHandlers;
 import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.util.DigestUtils;
+import org.springframework.util.unit.DataSize;
 import org.springframework.web.servlet.config.annotation.EnableWebMvc;
 
-import javax.imageio.ImageIO;
 import java.io.ByteArrayInputStream;
-import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStream;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.Mockito.*;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 @SpringBootTest
@@ -55,8 +69,16 @@ class ImageResizeControllerIntegrationTest {
     @Autowired
     private ImageResizeController imageResizeController;
 
+    @Autowired
+    private ImageCache imageCache;
+
+    @Autowired
+    private ImageExistenceIndex imageExistenceIndex;
+
     @BeforeEach
     public void setup() {
+        imageCache.invalidateAll();
+        imageExistenceIndex.invalidateAll();
         PutObjectResult putObjectResult = new PutObjectResult();
         mockMvc = MockMvcBuilders.standaloneSetup(imageResizeController).build();
         when(amazonS3.putObject(any(PutObjectRequest.class))).thenReturn(putObjectResult);
@@ -64,9 +86,9 @@ class ImageResizeControllerIntegrationTest {
 
     @Test
     public void should_return_resized_from_s3() throws Exception {
-        InputStream inputStream = new FileInputStream("src/test/resources/static/test.jpg");
+        byte[] storedImage = new FileInputStream("src/test/resources/static/test.jpg").readAllBytes();
         S3Object s3Object = new S3Object();
-        s3Object.setObjectContent(new ByteArrayInputStream(inputStream.readAllBytes()));
+        s3Object.setObjectContent(new ByteArrayInputStream(storedImage));
         String predefinedTypeName = "thumbnail";
         String originalFilename = "test.jpg";
 
@@ -78,8 +100,68 @@ class ImageResizeControllerIntegrationTest {
                 .andDo(MockMvcResultHandlers.print())
                 .andExpect(status().isOk())
                 .andExpect(content().contentType(MediaType.IMAGE_JPEG_VALUE))
-                .andExpect(content().bytes(inputStream.readAllBytes()));
+                .andExpect(content().bytes(storedImage));
+
+    }
+
+    @Test
+    public void should_return_validators_and_cache_control() throws Exception {
+        byte[] storedImage = new FileInputStream("src/test/resources/static/test.jpg").readAllBytes();
+        S3Object s3Object = new S3Object();
+        s3Object.setObjectContent(new ByteArrayInputStream(storedImage));
+
+        when(amazonS3.getObject("/thumbnail/test.jpg", "test.jpg")).thenReturn(s3Object);
+
+        mockMvc.perform(MockMvcRequestBuilders.get("/image/show/{predefined-type-name}/{dummy-seo-name}",
+                                "thumbnail", null)
+                        .queryParam("reference", "test.jpg"))
+                .andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.ETAG, '"' + DigestUtils.md5DigestAsHex(storedImage) + '"'))
+                .andExpect(header().string(HttpHeaders.CACHE_CONTROL, "max-age=604800, public"));
+    }
+
+    @Test
+    public void should_answer_not_modified_without_downloading() throws Exception {
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setHeader(HttpHeaders.ETAG, "0123456789abcdef");
+
+        when(amazonS3.getObjectMetadata("/thumbnail/test.jpg", "test.jpg")).thenReturn(metadata);
+
+        mockMvc.perform(MockMvcRequestBuilders.get("/image/show/{predefined-type-name}/{dummy-seo-name}",
+                                "thumbnail", null)
+                        .queryParam("reference", "test.jpg")
+                        .header(HttpHeaders.IF_NONE_MATCH, "\"0123456789abcdef\""))
+                .andExpect(status().isNotModified())
+                .andExpect(header().string(HttpHeaders.ETAG, "\"0123456789abcdef\""))
+                .andExpect(content().bytes(new byte[0]));
+
+        verify(amazonS3, never()).getObject(anyString(), anyString());
+    }
 
+    @Test
+    public void should_stream_a_large_stored_variant() throws Exception {
+        byte[] storedImage = new byte[(int) DataSize.ofMegabytes(2).toBytes()];
+        new Random(42).nextBytes(storedImage);
+
+        // Names longer than four characters are stored under a prefix of the name
+        S3Object streamed = storedObject(storedImage);
+        when(amazonS3.getObject("/thumbnail/larg/large.jpg", "large.jpg"))
+                .thenReturn(streamed, storedObject(storedImage));
+
+        ResponseEntity<Resource> response = imageResizeController.showImage("thumbnail", "large.jpg", null);
+
+        assertInstanceOf(InputStreamResource.class, response.getBody());
+        assertSame(streamed.getObjectContent(), response.getBody().getInputStream());
+        assertEquals(storedImage.length, response.getHeaders().getContentLength());
+        streamed.getObjectContent().close();
+
+        mockMvc.perform(MockMvcRequestBuilders.get("/image/show/{predefined-type-name}/{dummy-seo-name}",
+                                "thumbnail", null)
+                        .queryParam("reference", "large.jpg"))
+                .andExpect(status().isOk())
+                .andExpect(header().longValue(HttpHeaders.CONTENT_LENGTH, storedImage.length))
+                .andExpect(content().contentType(MediaType.IMAGE_JPEG_VALUE))
+                .andExpect(content().bytes(storedImage));
     }
 
     @Test
@@ -115,7 +197,8 @@ class ImageResizeControllerIntegrationTest {
         when(amazonS3.getObject("/thumbnail/test.jpg", originalFilename)).thenReturn(null);
         when(amazonS3.getObject("/original/test.jpg", originalFilename)).thenReturn(null);
         when(connectionService.downloadImage(SOURCE_URL + originalFilename))
-                .thenReturn(ImageIO.read(new File("src/test/resources/static/test-image.jpg")));
+                .thenReturn(new ImageContent(Files.readAllBytes(Path.of("src/test/resources/static/test-image.jpg")),
+                        MediaType.IMAGE_JPEG_VALUE));
 
         mockMvc.perform(MockMvcRequestBuilders.get("/image/show/{predefined-type-name}/{dummy-seo-name}",
                                 predefinedTypeName, null)
@@ -149,55 +232,43 @@ class ImageResizeControllerIntegrationTest {
 
     @Test
     public void should_testRemoveOriginalImage() throws Exception {
-        InputStream inputStream = new FileInputStream("src/test/resources/static/test.jpg");
-
-        S3Object s3Object = new S3Object();
-        s3Object.setObjectContent(new ByteArrayInputStream(inputStream.readAllBytes()));
         String predefinedTypeName = "original";
         String originalFilename = "test.jpg";
 
-        when(amazonS3.listBuckets()).thenReturn(getBuckets());
-        lenient().when(amazonS3.listObjectsV2("/thumbnail/test.jpg")).thenReturn(getThumbnailObjectSummaries());
-        lenient().when(amazonS3.listObjectsV2("/original/test.jpg")).thenReturn(getOriginalSummaries());
-
-
         mockMvc.perform(MockMvcRequestBuilders.delete("/image/flush/{predefined-type-name}/",
                                 predefinedTypeName)
                         .queryParam("reference", originalFilename))
                 .andDo(MockMvcResultHandlers.print())
                 .andExpect(status().isNoContent());
 
-        verify(amazonS3, times(1)).deleteObject("/thumbnail/test.jpg", "test.jpg");
-        verify(amazonS3, times(1)).deleteObject("/original/test.jpg", "test.jpg");
-    }
-
-    private List<Bucket> getBuckets() {
-        List<Bucket> buckets = new ArrayList<>();
-        buckets.add(new Bucket("/original/test.jpg"));
-        buckets.add(new Bucket("/thumbnail/test.jpg"));
-        return buckets;
+        verify(amazonS3, times(1)).deleteObjects(argThat(request -> deletes(request, "/thumbnail/test.jpg", "test.jpg")));
+        verify(amazonS3, times(1)).deleteObjects(argThat(request -> deletes(request, "/detail-large/test.jpg", "test.jpg")));
+        verify(amazonS3, times(1)).deleteObjects(argThat(request -> deletes(request, "/original/test.jpg", "test.jpg")));
+        verify(amazonS3, never()).listBuckets();
     }
 
-    private ListObjectsV2Result getThumbnailObjectSummaries() {
-        ListObjectsV2Result result = new ListObjectsV2Result();
-        List<S3ObjectSummary> objects = new ArrayList<>();
-        objects.add(new S3ObjectSummary());
-        objects.get(0).setBucketName("/thumbnail/test.jpg");
-        objects.get(0).setKey("test.jpg");
+    @Test
+    public void should_remove_many_images() throws Exception {
+        mockMvc.perform(MockMvcRequestBuilders.post("/image/flush/{predefined-type-name}/bulk", "thumbnail")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content("[\"a.jpg\", \"b.jpg\"]"))
+                .andDo(MockMvcResultHandlers.print())
+                .andExpect(status().isNoContent());
 
-        result.getObjectSummaries().addAll(objects);
-        return result;
+        verify(amazonS3, times(1)).deleteObjects(argThat(request -> deletes(request, "/thumbnail/a.jpg", "a.jpg")));
+        verify(amazonS3, times(1)).deleteObjects(argThat(request -> deletes(request, "/thumbnail/b.jpg", "b.jpg")));
     }
 
-    private ListObjectsV2Result getOriginalSummaries() {
-        ListObjectsV2Result result = new ListObjectsV2Result();
-        List<S3ObjectSummary> objects = new ArrayList<>();
-        objects.add(new S3ObjectSummary());
-        objects.get(0).setBucketName("/original/test.jpg");
-        objects.get(0).setKey("test.jpg");
+    private static S3Object storedObject(byte[] content) {
+        S3Object s3Object = new S3Object();
+        s3Object.setObjectContent(new ByteArrayInputStream(content));
+        s3Object.getObjectMetadata().setContentLength(content.length);
+        s3Object.getObjectMetadata().setContentType(MediaType.IMAGE_JPEG_VALUE);
+        return s3Object;
+    }
 
-        result.getObjectSummaries().addAll(objects);
-        return result;
+    private static boolean deletes(DeleteObjectsRequest request, String bucketName, String key) {
+        return bucketName.equals(request.getBucketName()) && key.equals(request.getKeys().get(0).getKey());
     }
 
-}
\ No newline at end of file
+}
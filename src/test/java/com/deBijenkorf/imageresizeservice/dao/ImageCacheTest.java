@@ -0,0 +1,46 @@
+package com.deBijenkorf.imageresizeservice.dao;
+
+import com.deBijenkorf.imageresizeservice.config.ImageCacheConfig;
+import com.deBijenkorf.imageresizeservice.model.ImageContent;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.unit.DataSize;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ImageCacheTest {
+
+    private ImageCache imageCache;
+
+    private SimpleMeterRegistry meterRegistry;
+
+    @BeforeEach
+    public void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        imageCache = new ImageCache(new ImageCacheConfig(DataSize.ofKilobytes(1), DataSize.ofMegabytes(1)), meterRegistry);
+    }
+
+    @Test
+    public void should_return_cached_variant() {
+        ImageContent imageContent = new ImageContent(new byte[]{1, 2, 3}, "image/jpeg");
+
+        imageCache.put("thumbnail", "test.jpg", imageContent);
+
+        assertSame(imageContent, imageCache.get("thumbnail", "test.jpg"));
+        assertNull(imageCache.get("detail-large", "test.jpg"));
+        assertEquals(1, imageCache.stats().hitCount());
+        assertEquals(1, imageCache.stats().missCount());
+    }
+
+    @Test
+    public void should_evict_by_byte_size() {
+        for (int i = 0; i < 10; i++) {
+            imageCache.put("thumbnail", "test" + i + ".jpg", new ImageContent(new byte[300], "image/jpeg"));
+        }
+        imageCache.cleanUp();
+
+        assertTrue(imageCache.stats().evictionCount() > 0);
+        assertNotNull(meterRegistry.find("cache.evictions").tag("cache", ImageCache.CACHE_NAME).functionCounter());
+    }
+}
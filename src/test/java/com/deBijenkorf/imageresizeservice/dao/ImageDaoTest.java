@@ -2,24 +2,39 @@ package com.deBijenkorf.imageresizeservice.dao;
 
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.model.*;
-import com.deBijenkorf.imageresizeservice.util.ImageUtil;
+import com.deBijenkorf.imageresizeservice.config.ImageCacheConfig;
+import com.deBijenkorf.imageresizeservice.config.ImageConfig;
+import com.deBijenkorf.imageresizeservice.config.ImageExistenceConfig;
+import com.deBijenkorf.imageresizeservice.exception.NoResourceFoundException;
+import com.deBijenkorf.imageresizeservice.model.ImageContent;
+import com.deBijenkorf.imageresizeservice.util.ImagePipelineMetrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.util.unit.DataSize;
 
-import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
+import java.time.Duration;
 import java.util.List;
+import java.util.stream.Collectors;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.Mockito.*;
 
 @ExtendWith(MockitoExtension.class)
@@ -30,39 +45,208 @@ public class ImageDaoTest {
     @Mock
     private AmazonS3 amazonS3;
 
-    @Mock
-    private ImageUtil imageUtil;
-
     @BeforeEach
     public void setUp() throws Exception {
 
-        imageDao = new ImageDao(amazonS3, imageUtil);
+        imageDao = new ImageDao(amazonS3, new ImageExistenceIndex(new ImageExistenceConfig(), new SimpleMeterRegistry()),
+                new ImageCacheConfig(), new ImagePipelineMetrics(new SimpleMeterRegistry(), new ImageConfig()));
         // this.image = ImageIO.read(new File("src/test/resources/static/test-image.jpg"));
 
     }
 
     @Test
-    public void should_load_image_from_s3() throws IOException {
+    public void should_load_image_from_s3() {
         InputStream inputStream = new ByteArrayInputStream(new byte[]{1, 2, 3});
-        BufferedImage bufferedImage = mock(BufferedImage.class);
         S3Object s3Object = new S3Object();
         s3Object.setObjectContent(inputStream);
 
         when(amazonS3.getObject("/thumbnail/abcd/efgh/abcdefghij.jpg", "abcdefghij.jpg")).thenReturn(s3Object);
-        when(imageUtil.bufferedImage(s3Object.getObjectContent())).thenReturn(bufferedImage);
 
         //WHEN
-        BufferedImage result = imageDao.findByName("thumbnail", "abcdefghij.jpg");
+        ImageContent result = imageDao.findByName("thumbnail", "abcdefghij.jpg");
 
         //THEN
         verify(amazonS3).getObject("/thumbnail/abcd/efgh/abcdefghij.jpg", "abcdefghij.jpg");
         assertNotNull(result);
+        assertArrayEquals(new byte[]{1, 2, 3}, result.getContent());
+        assertEquals("image/jpeg", result.getContentType());
+    }
+
+    @Test
+    public void should_check_existence_without_downloading() {
+        when(amazonS3.doesObjectExist("/thumbnail/abcd/efgh/abcdefghij.jpg", "abcdefghij.jpg")).thenReturn(true);
+
+        //WHEN
+        boolean result = imageDao.exists("thumbnail", "abcdefghij.jpg");
+
+        //THEN
+        assertTrue(result);
+        verify(amazonS3, never()).getObject(anyString(), anyString());
+    }
+
+    @Test
+    public void should_return_no_etag_for_missing_object() {
+        AmazonS3Exception notFound = new AmazonS3Exception("Not Found");
+        notFound.setStatusCode(404);
+        when(amazonS3.getObjectMetadata("/thumbnail/abcd/efgh/abcdefghij.jpg", "abcdefghij.jpg")).thenThrow(notFound);
+
+        //WHEN
+        String result = imageDao.findETag("thumbnail", "abcdefghij.jpg");
+
+        //THEN
+        assertNull(result);
+        verify(amazonS3, never()).getObject(anyString(), anyString());
     }
 
     @Test
-    public void should_load_image_from_s3_with_4_char_name() throws IOException {
+    public void should_not_look_up_again_an_object_found_missing() {
+        AmazonS3Exception notFound = new AmazonS3Exception("Not Found");
+        notFound.setStatusCode(404);
+        when(amazonS3.getObject("/thumbnail/abcd/efgh/abcdefghij.jpg", "abcdefghij.jpg")).thenThrow(notFound);
+
+        //WHEN
+        ImageContent first = imageDao.findByName("thumbnail", "abcdefghij.jpg");
+        ImageContent second = imageDao.findByName("thumbnail", "abcdefghij.jpg");
+
+        //THEN
+        assertNull(first);
+        assertNull(second);
+        verify(amazonS3, times(1)).getObject("/thumbnail/abcd/efgh/abcdefghij.jpg", "abcdefghij.jpg");
+    }
+
+    @Test
+    public void should_time_failed_and_known_missing_lookups() {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        imageDao = new ImageDao(amazonS3, new ImageExistenceIndex(new ImageExistenceConfig(), meterRegistry),
+                new ImageCacheConfig(), new ImagePipelineMetrics(meterRegistry, new ImageConfig()));
+        S3Object s3Object = new S3Object();
+        s3Object.setObjectContent(new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("Connection reset");
+            }
+        });
+        AmazonS3Exception notFound = new AmazonS3Exception("Not Found");
+        notFound.setStatusCode(404);
+        when(amazonS3.getObject("/thumbnail/abcd/efgh/abcdefghij.jpg", "abcdefghij.jpg")).thenReturn(s3Object);
+        when(amazonS3.getObject("/detail-large/abcd/efgh/abcdefghij.jpg", "abcdefghij.jpg")).thenThrow(notFound);
+
+        //WHEN
+        assertThrows(NoResourceFoundException.class, () -> imageDao.findByName("thumbnail", "abcdefghij.jpg"));
+        imageDao.findByName("detail-large", "abcdefghij.jpg");
+        imageDao.findByName("detail-large", "abcdefghij.jpg");
+
+        //THEN
+        assertEquals(1, meterRegistry.get("image.s3.get").tags("type", "thumbnail", "outcome", "failure").timer()
+                .count());
+        assertEquals(2, meterRegistry.get("image.s3.get").tags("type", "detail-large", "outcome", "miss").timer()
+                .count());
+        verify(amazonS3, times(1)).getObject("/detail-large/abcd/efgh/abcdefghij.jpg", "abcdefghij.jpg");
+    }
+
+    @Test
+    public void should_look_up_again_after_save() {
+        S3Object s3Object = new S3Object();
+        s3Object.setObjectContent(new ByteArrayInputStream(new byte[]{1, 2, 3}));
+        when(amazonS3.getObject("/thumbnail/abcd/efgh/abcdefghij.jpg", "abcdefghij.jpg"))
+                .thenReturn(null)
+                .thenReturn(s3Object);
+
+        //WHEN
+        imageDao.findByName("thumbnail", "abcdefghij.jpg");
+        imageDao.save(new ImageContent(new byte[]{1, 2, 3}, "image/jpeg"), "abcdefghij.jpg", "thumbnail");
+        ImageContent result = imageDao.findByName("thumbnail", "abcdefghij.jpg");
+
+        //THEN
+        assertNotNull(result);
+        verify(amazonS3, times(2)).getObject("/thumbnail/abcd/efgh/abcdefghij.jpg", "abcdefghij.jpg");
+    }
+
+    @Test
+    public void should_skip_objects_absent_from_seeded_bloom_filter() {
+        ImageExistenceIndex existenceIndex = new ImageExistenceIndex(
+                new ImageExistenceConfig(Duration.ofSeconds(30), 1000L, true, 1000L, 0.01), new SimpleMeterRegistry());
+        imageDao = new ImageDao(amazonS3, existenceIndex, new ImageCacheConfig(),
+                new ImagePipelineMetrics(new SimpleMeterRegistry(), new ImageConfig()));
+        when(amazonS3.listBuckets()).thenReturn(List.of(new Bucket("/thumbnail/abcd/efgh/abcdefghij.jpg")));
+        ListObjectsV2Result firstPage = new ListObjectsV2Result();
+        firstPage.setTruncated(true);
+        firstPage.setNextContinuationToken("next");
+        ListObjectsV2Result lastPage = new ListObjectsV2Result();
+        S3ObjectSummary summary = new S3ObjectSummary();
+        summary.setKey("abcdefghij.jpg");
+        lastPage.getObjectSummaries().add(summary);
+        when(amazonS3.listObjectsV2(any(ListObjectsV2Request.class))).thenReturn(firstPage, lastPage);
+        S3Object s3Object = new S3Object();
+        s3Object.setObjectContent(new ByteArrayInputStream(new byte[]{1, 2, 3}));
+        when(amazonS3.getObject("/thumbnail/abcd/efgh/abcdefghij.jpg", "abcdefghij.jpg")).thenReturn(s3Object);
+
+        //WHEN
+        existenceIndex.seed(imageDao::listStoredObjects);
+        ImageContent stored = imageDao.findByName("thumbnail", "abcdefghij.jpg");
+        ImageContent missing = imageDao.findByName("detail-large", "abcdefghij.jpg");
+
+        //THEN
+        assertNotNull(stored);
+        assertNull(missing);
+        verify(amazonS3, times(2)).listObjectsV2(any(ListObjectsV2Request.class));
+        verify(amazonS3, never()).getObject("/detail-large/abcd/efgh/abcdefghij.jpg", "abcdefghij.jpg");
+    }
+
+    @Test
+    public void should_stream_variants_larger_than_a_cache_entry() {
+        InputStream inputStream = new ByteArrayInputStream(new byte[]{1, 2, 3});
+        S3Object s3Object = new S3Object();
+        s3Object.setObjectContent(inputStream);
+        s3Object.getObjectMetadata().setContentLength(DataSize.ofMegabytes(2).toBytes());
+        s3Object.getObjectMetadata().setHeader("ETag", "0123456789abcdef");
+        when(amazonS3.getObject("/detail-large/abcd/efgh/abcdefghij.jpg", "abcdefghij.jpg")).thenReturn(s3Object);
+
+        //WHEN
+        ImageContent result = imageDao.findByName("detail-large", "abcdefghij.jpg");
+
+        //THEN
+        assertTrue(result.isStreamed());
+        assertNull(result.getContent());
+        assertEquals(DataSize.ofMegabytes(2).toBytes(), result.getContentLength());
+        assertEquals("0123456789abcdef", result.getEtag());
+    }
+
+    @Test
+    public void should_read_exactly_the_advertised_length() {
+        S3Object s3Object = new S3Object();
+        s3Object.setObjectContent(new ByteArrayInputStream(new byte[]{1, 2, 3}));
+        s3Object.getObjectMetadata().setContentLength(3);
+        when(amazonS3.getObject("/thumbnail/abcd/efgh/abcdefghij.jpg", "abcdefghij.jpg")).thenReturn(s3Object);
+
+        //WHEN
+        ImageContent result = imageDao.findByName("thumbnail", "abcdefghij.jpg");
+
+        //THEN
+        assertFalse(result.isStreamed());
+        assertArrayEquals(new byte[]{1, 2, 3}, result.getContent());
+    }
+
+    @Test
+    public void should_use_stored_content_type_from_s3() {
+        ObjectMetadata objectMetadata = new ObjectMetadata();
+        objectMetadata.setContentType("image/png");
+        S3Object s3Object = new S3Object();
+        s3Object.setObjectMetadata(objectMetadata);
+        s3Object.setObjectContent(new ByteArrayInputStream(new byte[]{1, 2, 3}));
+
+        when(amazonS3.getObject("/thumbnail/test.jpg", "test.jpg")).thenReturn(s3Object);
+
+        //WHEN
+        ImageContent result = imageDao.findByName("thumbnail", "test.jpg");
+
+        //THEN
+        assertEquals("image/png", result.getContentType());
+    }
+
+    @Test
+    public void should_load_image_from_s3_with_4_char_name() {
         InputStream inputStream = new ByteArrayInputStream(new byte[]{1, 2, 3});
-        BufferedImage bufferedImage = mock(BufferedImage.class);
         S3Object s3Object = new S3Object();
         s3Object.setObjectContent(inputStream);
 
@@ -70,10 +254,9 @@ public class ImageDaoTest {
         final String bucketName = "/thumbnail/abcd.jpg";
 
         when(amazonS3.getObject(bucketName, fileName)).thenReturn(s3Object);
-        when(imageUtil.bufferedImage(s3Object.getObjectContent())).thenReturn(bufferedImage);
 
         //WHEN
-        BufferedImage result = imageDao.findByName("thumbnail", fileName);
+        ImageContent result = imageDao.findByName("thumbnail", fileName);
 
         //THEN
         verify(amazonS3).getObject(bucketName, fileName);
@@ -81,9 +264,8 @@ public class ImageDaoTest {
     }
 
     @Test
-    public void should_load_image_from_s3_with_underscore_name() throws IOException {
+    public void should_load_image_from_s3_with_underscore_name() {
         InputStream inputStream = new ByteArrayInputStream(new byte[]{1, 2, 3});
-        BufferedImage bufferedImage = mock(BufferedImage.class);
         S3Object s3Object = new S3Object();
         s3Object.setObjectContent(inputStream);
 
@@ -92,10 +274,9 @@ public class ImageDaoTest {
         final String bucketName = "/thumbnail/_som/edir/_somedir_anotherdir_abcdef.jpg";
 
         when(amazonS3.getObject(bucketName, expectedFileName)).thenReturn(s3Object);
-        when(imageUtil.bufferedImage(s3Object.getObjectContent())).thenReturn(bufferedImage);
 
         //WHEN
-        BufferedImage result = imageDao.findByName("thumbnail", fileName);
+        ImageContent result = imageDao.findByName("thumbnail", fileName);
 
         //THEN
         verify(amazonS3).getObject(bucketName, expectedFileName);
@@ -103,9 +284,8 @@ public class ImageDaoTest {
     }
 
     @Test
-    public void should_load_image_from_s3_with_6_char_name() throws IOException {
+    public void should_load_image_from_s3_with_6_char_name() {
         InputStream inputStream = new ByteArrayInputStream(new byte[]{1, 2, 3});
-        BufferedImage bufferedImage = mock(BufferedImage.class);
         S3Object s3Object = new S3Object();
         s3Object.setObjectContent(inputStream);
 
@@ -113,10 +293,9 @@ public class ImageDaoTest {
         final String bucketName = "/thumbnail/abcd/abcdef.jpg";
 
         when(amazonS3.getObject(bucketName, fileName)).thenReturn(s3Object);
-        when(imageUtil.bufferedImage(s3Object.getObjectContent())).thenReturn(bufferedImage);
 
         //WHEN
-        BufferedImage result = imageDao.findByName("thumbnail", fileName);
+        ImageContent result = imageDao.findByName("thumbnail", fileName);
 
         //THEN
         verify(amazonS3).getObject(bucketName, fileName);
@@ -124,17 +303,20 @@ public class ImageDaoTest {
     }
 
     @Test
-    public void should_save_in_s3() throws IOException {
+    public void should_save_in_s3() {
+        ImageContent imageContent = new ImageContent(new byte[]{1, 2, 3}, "image/png");
 
-        BufferedImage image = new BufferedImage(10, 10, BufferedImage.TYPE_INT_RGB);
-        File file = new File("test.jpg");
-
-        when(imageUtil.writeImage(image, "jpg", file)).thenReturn(true);
         //WHEN
-        imageDao.save(image, "test.jpg", "type");
+        imageDao.save(imageContent, "test.jpg", "thumbnail");
 
         //THEN
-        verify(amazonS3, times(1)).putObject(any(PutObjectRequest.class));
+        verify(amazonS3, times(1)).putObject(argThat((PutObjectRequest request) ->
+                "/thumbnail/test.jpg".equals(request.getBucketName())
+                        && request.getFile() == null
+                        && request.getInputStream() != null
+                        && request.getMetadata().getContentLength() == 3
+                        && "image/png".equals(request.getMetadata().getContentType())));
+        assertFalse(new File("test.jpg").exists());
     }
 
     @Test
@@ -158,42 +340,25 @@ public class ImageDaoTest {
     @Test
     public void should_deleteAllFileInS3Buckets() {
         String fileName = "test.jpg";
-        when(amazonS3.listBuckets()).thenReturn(getBuckets());
-        when(amazonS3.listObjectsV2("/original/test.jpg")).thenReturn(getOriginalSummaries());
-        when(amazonS3.listObjectsV2("/thumbnail/test.jpg")).thenReturn(getThumbnailObjectSummaries());
+        ArgumentCaptor<DeleteObjectsRequest> requests = ArgumentCaptor.forClass(DeleteObjectsRequest.class);
 
         imageDao.deleteObject(fileName, "original");
-        verify(amazonS3, times(1)).deleteObject(eq("/thumbnail/test.jpg"), eq(fileName));
-        verify(amazonS3, times(1)).deleteObject(eq("/original/test.jpg"), eq(fileName));
-    }
 
-    private List<Bucket> getBuckets() {
-        List<Bucket> buckets = new ArrayList<>();
-        buckets.add(new Bucket("/original/test.jpg"));
-        buckets.add(new Bucket("/thumbnail/test.jpg"));
-        return buckets;
+        verify(amazonS3, times(3)).deleteObjects(requests.capture());
+        assertEquals(List.of("/original/test.jpg", "/thumbnail/test.jpg", "/detail-large/test.jpg"),
+                requests.getAllValues().stream().map(DeleteObjectsRequest::getBucketName).collect(Collectors.toList()));
+        requests.getAllValues().forEach(request -> assertEquals(fileName, request.getKeys().get(0).getKey()));
+        verify(amazonS3, never()).listBuckets();
     }
 
-    private ListObjectsV2Result getThumbnailObjectSummaries() {
-        ListObjectsV2Result result = new ListObjectsV2Result();
-        List<S3ObjectSummary> objects = new ArrayList<>();
-        objects.add(new S3ObjectSummary());
-        objects.get(0).setBucketName("/thumbnail/test.jpg");
-        objects.get(0).setKey("test.jpg");
-
-        result.getObjectSummaries().addAll(objects);
-        return result;
-    }
+    @Test
+    public void should_delete_many_files_in_one_request_per_bucket() {
+        ArgumentCaptor<DeleteObjectsRequest> requests = ArgumentCaptor.forClass(DeleteObjectsRequest.class);
 
-    private ListObjectsV2Result getOriginalSummaries() {
-        ListObjectsV2Result result = new ListObjectsV2Result();
-        List<S3ObjectSummary> objects = new ArrayList<>();
-        objects.add(new S3ObjectSummary());
-        objects.get(0).setBucketName("/original/test.jpg");
-        objects.get(0).setKey("test.jpg");
+        imageDao.deleteObjects(List.of("a.jpg", "b.jpg"), "thumbnail");
 
-        result.getObjectSummaries().addAll(objects);
-        return result;
+        verify(amazonS3, times(2)).deleteObjects(requests.capture());
+        assertEquals(List.of("/thumbnail/a.jpg", "/thumbnail/b.jpg"),
+                requests.getAllValues().stream().map(DeleteObjectsRequest::getBucketName).collect(Collectors.toList()));
     }
-
-}
\ No newline at end of file
+}
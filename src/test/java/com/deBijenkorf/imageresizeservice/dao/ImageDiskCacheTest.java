@@ -0,0 +1,136 @@
+package com.deBijenkorf.imageresizeservice.dao;
+
+import com.deBijenkorf.imageresizeservice.config.ImageCacheConfig;
+import com.deBijenkorf.imageresizeservice.config.ImageDiskCacheConfig;
+import com.deBijenkorf.imageresizeservice.model.ImageContent;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ImageDiskCacheTest {
+
+    @TempDir
+    Path directory;
+
+    private ImageDiskCache imageDiskCache;
+
+    private SimpleMeterRegistry meterRegistry;
+
+    @AfterEach
+    public void tearDown() {
+        imageDiskCache.close();
+    }
+
+    @Test
+    public void should_return_stored_variant_with_its_validators() {
+        imageDiskCache = open(DataSize.ofMegabytes(1));
+        Instant lastModified = Instant.ofEpochMilli(1_000);
+
+        imageDiskCache.put("thumbnail", "test.jpg",
+                new ImageContent(new byte[]{1, 2, 3}, "image/jpeg", "etag", lastModified));
+
+        ImageContent imageContent = imageDiskCache.get("thumbnail", "test.jpg");
+        assertArrayEquals(new byte[]{1, 2, 3}, imageContent.getContent());
+        assertEquals("image/jpeg", imageContent.getContentType());
+        assertEquals("etag", imageContent.getEtag());
+        assertEquals(lastModified, imageContent.getLastModified());
+        assertEquals("etag", imageDiskCache.findETag("thumbnail", "test.jpg"));
+        assertNull(imageDiskCache.get("detail-large", "test.jpg"));
+    }
+
+    @Test
+    public void should_survive_a_restart_without_the_flushed_variants() {
+        imageDiskCache = open(DataSize.ofMegabytes(1));
+        imageDiskCache.put("thumbnail", "a.jpg", new ImageContent(new byte[]{1, 2, 3}, "image/jpeg"));
+        imageDiskCache.put("thumbnail", "b.jpg", new ImageContent(new byte[]{4, 5, 6}, "image/jpeg"));
+        imageDiskCache.put("detail-large", "b.jpg", new ImageContent(new byte[]{4, 5, 6}, "image/jpeg"));
+        imageDiskCache.invalidateVariants("b.jpg");
+        imageDiskCache.close();
+
+        imageDiskCache = open(DataSize.ofMegabytes(1));
+
+        assertArrayEquals(new byte[]{1, 2, 3}, imageDiskCache.get("thumbnail", "a.jpg").getContent());
+        assertNull(imageDiskCache.get("thumbnail", "b.jpg"));
+        assertNull(imageDiskCache.get("detail-large", "b.jpg"));
+    }
+
+    @Test
+    public void should_truncate_a_torn_record_on_restart() throws IOException {
+        imageDiskCache = open(DataSize.ofMegabytes(1));
+        imageDiskCache.put("thumbnail", "a.jpg", new ImageContent(new byte[]{1, 2, 3}, "image/jpeg"));
+        long size = imageDiskCache.size();
+        imageDiskCache.close();
+        Files.write(lastSegment(), new byte[]{0x49, 0x4d, 0x47}, StandardOpenOption.APPEND);
+
+        imageDiskCache = open(DataSize.ofMegabytes(1));
+
+        assertEquals(size, imageDiskCache.size());
+        assertEquals(size, Files.size(lastSegment()));
+        assertNotNull(imageDiskCache.get("thumbnail", "a.jpg"));
+    }
+
+    @Test
+    public void should_evict_oldest_segments_but_keep_variants_still_read() {
+        imageDiskCache = open(DataSize.ofKilobytes(20));
+        imageDiskCache.put("thumbnail", "hot.jpg", new ImageContent(new byte[500], "image/jpeg"));
+
+        for (int i = 0; i < 100; i++) {
+            imageDiskCache.put("thumbnail", "test" + i + ".jpg", new ImageContent(new byte[500], "image/jpeg"));
+            assertNotNull(imageDiskCache.get("thumbnail", "hot.jpg"));
+        }
+
+        assertTrue(imageDiskCache.size() <= DataSize.ofKilobytes(20).toBytes());
+        assertNull(imageDiskCache.get("thumbnail", "test0.jpg"));
+        assertNotNull(imageDiskCache.get("thumbnail", "test99.jpg"));
+        assertTrue(meterRegistry.get("image.disk-cache.evictions").counter().count() > 0);
+    }
+
+    @Test
+    public void should_stream_variants_above_the_maximum_entry_size() throws IOException {
+        imageDiskCache = open(DataSize.ofMegabytes(4));
+        byte[] content = new byte[(int) DataSize.ofMegabytes(1).toBytes() + 1];
+        content[content.length - 1] = 7;
+
+        imageDiskCache.put("detail-large", "test.jpg", new ImageContent(content, "image/jpeg"));
+
+        ImageContent imageContent = imageDiskCache.get("detail-large", "test.jpg");
+        assertTrue(imageContent.isStreamed());
+        assertEquals(content.length, imageContent.getContentLength());
+        assertArrayEquals(content, imageContent.getStream().readAllBytes());
+    }
+
+    @Test
+    public void should_do_nothing_when_disabled() {
+        meterRegistry = new SimpleMeterRegistry();
+        imageDiskCache = new ImageDiskCache(new ImageDiskCacheConfig(), new ImageCacheConfig(), meterRegistry);
+
+        imageDiskCache.put("thumbnail", "test.jpg", new ImageContent(new byte[]{1, 2, 3}, "image/jpeg"));
+
+        assertNull(imageDiskCache.get("thumbnail", "test.jpg"));
+        assertEquals(0, imageDiskCache.size());
+    }
+
+    private ImageDiskCache open(DataSize maximumSize) {
+        meterRegistry = new SimpleMeterRegistry();
+        ImageDiskCacheConfig diskCacheConfig = new ImageDiskCacheConfig(true, directory.toString(), maximumSize,
+                DataSize.ofBytes(Math.min(maximumSize.toBytes() / 4, DataSize.ofMegabytes(2).toBytes())));
+        return new ImageDiskCache(diskCacheConfig, new ImageCacheConfig(), meterRegistry);
+    }
+
+    private Path lastSegment() throws IOException {
+        try (Stream<Path> segments = Files.list(directory)) {
+            return segments.max(Path::compareTo).orElseThrow();
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.deBijenkorf.imageresizeservice.service;
+
+import com.deBijenkorf.imageresizeservice.config.ImageConfig;
+import com.deBijenkorf.imageresizeservice.config.SourceHttpClientConfig;
+import com.deBijenkorf.imageresizeservice.exception.NoResourceFoundException;
+import com.deBijenkorf.imageresizeservice.model.ImageContent;
+import com.deBijenkorf.imageresizeservice.util.ImagePipelineMetrics;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs the downloads against a local stub of the source site.
+ */
+public class ConnectionServiceTest {
+
+    private static final byte[] IMAGE = {1, 2, 3};
+
+    private HttpServer server;
+
+    private String baseUrl;
+
+    private final Set<Integer> clientPorts = ConcurrentHashMap.newKeySet();
+
+    private final List<String> ifNoneMatchHeaders = new CopyOnWriteArrayList<>();
+
+    private ConnectionService connectionService;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/images/", this::serveImage);
+        server.createContext("/slow/", exchange -> {
+            sleep(Duration.ofSeconds(2));
+            serveImage(exchange);
+        });
+        server.createContext("/trickle/", exchange -> {
+            exchange.sendResponseHeaders(200, 10);
+            try {
+                for (int i = 0; i < 10; i++) {
+                    exchange.getResponseBody().write(i);
+                    exchange.getResponseBody().flush();
+                    sleep(Duration.ofMillis(200));
+                }
+            } catch (IOException e) {
+                // The client gave up on the body
+            } finally {
+                exchange.close();
+            }
+        });
+        server.createContext("/missing/", exchange -> {
+            exchange.sendResponseHeaders(404, -1);
+            exchange.close();
+        });
+        server.start();
+        baseUrl = "http://localhost:" + server.getAddress().getPort();
+        connectionService = new ConnectionService(new SourceHttpClientConfig(Duration.ofSeconds(1),
+                Duration.ofMillis(500), 2, DataSize.ofMegabytes(1), Duration.ofSeconds(1)),
+                new ImagePipelineMetrics(new SimpleMeterRegistry(), new ImageConfig()));
+    }
+
+    @AfterEach
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void should_reuse_the_connection_across_downloads() {
+        // WHEN
+        for (int i = 0; i < 5; i++) {
+            ImageContent image = connectionService.downloadImage(baseUrl + "/images/test" + i + ".jpg");
+            assertArrayEquals(IMAGE, image.getContent());
+            assertEquals("image/jpeg", image.getContentType());
+        }
+
+        // Then
+        assertEquals(1, clientPorts.size());
+    }
+
+    @Test
+    public void should_revalidate_a_downloaded_original_with_a_conditional_get() {
+        // Given
+        ImageContent first = connectionService.downloadImage(baseUrl + "/images/test.jpg");
+
+        // WHEN
+        ImageContent second = connectionService.downloadImage(baseUrl + "/images/test.jpg");
+
+        // Then
+        assertSame(first, second);
+        assertEquals(List.of("none", "\"v1\""), ifNoneMatchHeaders);
+    }
+
+    @Test
+    public void should_give_up_on_a_slow_source() {
+        assertThrows(NoResourceFoundException.class, () -> connectionService.downloadImage(baseUrl + "/slow/test.jpg"));
+    }
+
+    @Test
+    public void should_give_up_on_a_source_trickling_the_body() {
+        // Given
+        long start = System.nanoTime();
+
+        // WHEN
+        assertThrows(NoResourceFoundException.class,
+                () -> connectionService.downloadImage(baseUrl + "/trickle/test.jpg"));
+
+        // Then
+        assertTrue(Duration.ofNanos(System.nanoTime() - start).compareTo(Duration.ofMillis(1500)) < 0);
+    }
+
+    @Test
+    public void should_throw_exception_when_source_image_is_missing() {
+        assertThrows(NoResourceFoundException.class, () -> connectionService.downloadImage(baseUrl + "/missing/test.jpg"));
+    }
+
+    private void serveImage(HttpExchange exchange) throws IOException {
+        clientPorts.add(exchange.getRemoteAddress().getPort());
+        String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+        ifNoneMatchHeaders.add(ifNoneMatch == null ? "none" : ifNoneMatch);
+        if ("\"v1\"".equals(ifNoneMatch)) {
+            exchange.sendResponseHeaders(304, -1);
+        } else {
+            exchange.getResponseHeaders().add("Content-Type", "image/jpeg");
+            exchange.getResponseHeaders().add("ETag", "\"v1\"");
+            exchange.sendResponseHeaders(200, IMAGE.length);
+            exchange.getResponseBody().write(IMAGE);
+        }
+        exchange.close();
+    }
+
+    private static void sleep(Duration duration) {
+        try {
+            Thread.sleep(duration.toMillis());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.deBijenkorf.imageresizeservice.service;
+
+import com.amazonaws.SdkClientException;
+import com.deBijenkorf.imageresizeservice.config.ImageWriteBehindConfig;
+import com.deBijenkorf.imageresizeservice.dao.ImageDao;
+import com.deBijenkorf.imageresizeservice.model.ImageContent;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+public class ImagePersistenceServiceTest {
+
+    @Mock
+    private ImageDao imageDao;
+
+    private SimpleMeterRegistry meterRegistry;
+
+    private ImageContent imageContent;
+
+    @BeforeEach
+    public void setup() {
+        meterRegistry = new SimpleMeterRegistry();
+        imageContent = new ImageContent(new byte[]{1, 2, 3}, "image/jpeg");
+    }
+
+    @Test
+    public void should_save_synchronously_when_write_behind_disabled() {
+        ImagePersistenceService persistenceService =
+                new ImagePersistenceService(imageDao, new ImageWriteBehindConfig(), meterRegistry);
+        doThrow(new SdkClientException("test")).when(imageDao).save(imageContent, "test.jpg", "thumbnail");
+
+        persistenceService.save(imageContent, "test.jpg", "thumbnail");
+
+        verify(imageDao, times(1)).save(imageContent, "test.jpg", "thumbnail");
+        assertEquals(1, meterRegistry.counter("image.write-behind.failures").count());
+    }
+
+    @Test
+    public void should_retry_and_drain_queued_uploads() throws InterruptedException {
+        ImagePersistenceService persistenceService = new ImagePersistenceService(imageDao, writeBehindConfig(), meterRegistry);
+        doThrow(new SdkClientException("test")).doNothing().when(imageDao).save(imageContent, "test.jpg", "thumbnail");
+
+        persistenceService.save(imageContent, "test.jpg", "thumbnail");
+        persistenceService.drain();
+
+        verify(imageDao, times(2)).save(imageContent, "test.jpg", "thumbnail");
+        assertEquals(1, meterRegistry.counter("image.write-behind.retries").count());
+        assertEquals(0, meterRegistry.counter("image.write-behind.failures").count());
+        assertEquals(0, persistenceService.queueSize());
+    }
+
+    @Test
+    public void should_count_failure_after_last_attempt() throws InterruptedException {
+        ImagePersistenceService persistenceService = new ImagePersistenceService(imageDao, writeBehindConfig(), meterRegistry);
+        doThrow(new SdkClientException("test")).when(imageDao).save(imageContent, "test.jpg", "thumbnail");
+
+        persistenceService.save(imageContent, "test.jpg", "thumbnail");
+        persistenceService.drain();
+
+        verify(imageDao, times(3)).save(imageContent, "test.jpg", "thumbnail");
+        assertEquals(1, meterRegistry.counter("image.write-behind.failures").count());
+    }
+
+    @Test
+    public void should_retry_batch_as_a_whole() throws InterruptedException {
+        ImagePersistenceService persistenceService = new ImagePersistenceService(imageDao, writeBehindConfig(), meterRegistry);
+        doNothing().when(imageDao).save(imageContent, "test.jpg", "thumbnail");
+        doThrow(new SdkClientException("test")).doNothing().when(imageDao).save(imageContent, "test.jpg", "detail-large");
+
+        persistenceService.saveAll(imageContent, "test.jpg", List.of("thumbnail", "detail-large"));
+        persistenceService.drain();
+
+        verify(imageDao, times(2)).save(imageContent, "test.jpg", "thumbnail");
+        verify(imageDao, times(2)).save(imageContent, "test.jpg", "detail-large");
+        assertEquals(1, meterRegistry.counter("image.write-behind.retries").count());
+        assertEquals(0, meterRegistry.counter("image.write-behind.failures").count());
+    }
+
+    @Test
+    public void should_save_synchronously_when_queued_bytes_exceed_limit() throws InterruptedException {
+        ImageWriteBehindConfig writeBehindConfig = writeBehindConfig();
+        writeBehindConfig.setMaximumQueuedSize(DataSize.ofBytes(2));
+        ImagePersistenceService persistenceService = new ImagePersistenceService(imageDao, writeBehindConfig, meterRegistry);
+        Thread caller = Thread.currentThread();
+        List<Thread> uploaders = new ArrayList<>();
+        doAnswer(invocation -> uploaders.add(Thread.currentThread()))
+                .when(imageDao).save(imageContent, "test.jpg", "thumbnail");
+
+        persistenceService.save(imageContent, "test.jpg", "thumbnail");
+        persistenceService.drain();
+
+        assertEquals(List.of(caller), uploaders);
+        assertEquals(0, persistenceService.queuedBytes());
+    }
+
+    private ImageWriteBehindConfig writeBehindConfig() {
+        return new ImageWriteBehindConfig(true, 1, 10, DataSize.ofKilobytes(1), 3, Duration.ofMillis(1),
+                Duration.ofSeconds(5));
+    }
+}
@@ -0,0 +1,91 @@
+package com.deBijenkorf.imageresizeservice.service;
+
+import com.deBijenkorf.imageresizeservice.config.ImagePrewarmConfig;
+import com.deBijenkorf.imageresizeservice.exception.NoResourceFoundException;
+import com.deBijenkorf.imageresizeservice.exception.ServiceOverloadedException;
+import com.deBijenkorf.imageresizeservice.model.PrewarmReport;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+public class ImagePrewarmServiceTest {
+
+    @Mock
+    private ImageResizeService imageResizeService;
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void should_render_missing_variants_and_report_failures() throws Exception {
+        // Given
+        Path manifest = Files.write(tempDir.resolve("references.txt"), List.of("a.jpg", "# comment", "", "b.jpg", "c.jpg"));
+        when(imageResizeService.prerender("thumbnail", "a.jpg")).thenReturn(true);
+        when(imageResizeService.prerender("thumbnail", "b.jpg")).thenReturn(false);
+        when(imageResizeService.prerender("thumbnail", "c.jpg"))
+                .thenThrow(new ServiceOverloadedException("busy", Duration.ofMillis(1)))
+                .thenThrow(new NoResourceFoundException("Source Image not found"));
+        ImagePrewarmService prewarmService = new ImagePrewarmService(imageResizeService, config());
+
+        // WHEN
+        PrewarmReport report = prewarmService.prewarm(manifest);
+
+        // Then
+        assertEquals(3, report.getReferences());
+        assertEquals(1, report.getRendered());
+        assertEquals(1, report.getSkipped());
+        assertEquals(1, report.getFailed());
+        verify(imageResizeService, times(2)).prerender("thumbnail", "c.jpg");
+        assertEquals(List.of("c.jpg"), Files.readAllLines(tempDir.resolve("references.txt.failed")));
+        assertFalse(Files.exists(tempDir.resolve("references.txt.checkpoint")));
+    }
+
+    @Test
+    public void should_resume_after_checkpoint() throws Exception {
+        // Given
+        Path manifest = Files.write(tempDir.resolve("references.txt"), List.of("a.jpg", "b.jpg", "c.jpg"));
+        Files.writeString(tempDir.resolve("references.txt.checkpoint"), "2");
+        when(imageResizeService.prerender("thumbnail", "c.jpg")).thenReturn(true);
+        ImagePrewarmService prewarmService = new ImagePrewarmService(imageResizeService, config());
+
+        // WHEN
+        PrewarmReport report = prewarmService.prewarm(manifest);
+
+        // Then
+        assertEquals(2, report.getResumedFrom());
+        assertEquals(1, report.getRendered());
+        verify(imageResizeService, never()).prerender("thumbnail", "a.jpg");
+        verify(imageResizeService, never()).prerender("thumbnail", "b.jpg");
+        assertFalse(Files.exists(tempDir.resolve("references.txt.checkpoint")));
+    }
+
+    @Test
+    public void should_normalize_references_like_the_controller() throws Exception {
+        // Given
+        Path manifest = Files.write(tempDir.resolve("references.txt"), List.of("summer/a.jpg"));
+        when(imageResizeService.prerender("thumbnail", "summer_a.jpg")).thenReturn(true);
+        ImagePrewarmService prewarmService = new ImagePrewarmService(imageResizeService, config());
+
+        // WHEN
+        PrewarmReport report = prewarmService.prewarm(manifest);
+
+        // Then
+        assertEquals(1, report.getRendered());
+        verify(imageResizeService).prerender("thumbnail", "summer_a.jpg");
+    }
+
+    private ImagePrewarmConfig config() {
+        return new ImagePrewarmConfig(null, List.of("thumbnail"), 2, 1, false);
+    }
+}
@@ -1,18 +1,37 @@
 package com.deBijenkorf.imageresizeservice.service;
 
+import com.deBijenkorf.imageresizeservice.config.ImageCacheConfig;
+import com.deBijenkorf.imageresizeservice.config.ImageConfig;
+import com.deBijenkorf.imageresizeservice.config.ImageDiskCacheConfig;
+import com.deBijenkorf.imageresizeservice.config.ImageResizeExecutorConfig;
+import com.deBijenkorf.imageresizeservice.config.ImageWriteBehindConfig;
+import com.deBijenkorf.imageresizeservice.dao.ImageCache;
 import com.deBijenkorf.imageresizeservice.dao.ImageDao;
+import com.deBijenkorf.imageresizeservice.dao.ImageDiskCache;
 import com.deBijenkorf.imageresizeservice.exception.NoResourceFoundException;
+import com.deBijenkorf.imageresizeservice.model.ImageContent;
+import com.deBijenkorf.imageresizeservice.util.ImagePipelineMetrics;
 import com.deBijenkorf.imageresizeservice.util.ImageResizeUtil;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.util.unit.DataSize;
 
-import javax.imageio.ImageIO;
-import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.anyString;
@@ -23,6 +42,18 @@ public class ImageResizeServiceTest {
 
     private ImageResizeService imageResizeService;
 
+    private ImageCache imageCache;
+
+    private ImageDiskCache imageDiskCache;
+
+    private ResizeExecutor resizeExecutor;
+
+    private ImagePersistenceService imagePersistenceService;
+
+    private SimpleMeterRegistry meterRegistry;
+
+    private ImagePipelineMetrics metrics;
+
     @Mock
     private ImageDao imageDao;
 
@@ -34,55 +65,220 @@ public class ImageResizeServiceTest {
 
     @BeforeEach
     public void setup() {
-        imageResizeService = new ImageResizeService(imageDao, imageResizeUtil, connectionService, "sourceUrl");
+        meterRegistry = new SimpleMeterRegistry();
+        metrics = new ImagePipelineMetrics(meterRegistry, new ImageConfig());
+        imageCache = new ImageCache(new ImageCacheConfig(), new SimpleMeterRegistry());
+        imageDiskCache = new ImageDiskCache(new ImageDiskCacheConfig(), new ImageCacheConfig(), new SimpleMeterRegistry());
+        imagePersistenceService =
+                new ImagePersistenceService(imageDao, new ImageWriteBehindConfig(), new SimpleMeterRegistry());
+        resizeExecutor = new ResizeExecutor(new ImageResizeExecutorConfig(2, 10, Duration.ofSeconds(1), 1_000_000L,
+                true, 2048 * 2048), new SimpleMeterRegistry());
+        imageResizeService = new ImageResizeService(imageDao, imageCache, imageDiskCache, imageResizeUtil,
+                resizeExecutor, imagePersistenceService, connectionService, metrics, "sourceUrl", false);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        resizeExecutor.shutdown();
     }
 
     @Test
-    public void should_return_resized_image() throws IOException {
+    public void should_serve_cached_variant_without_calling_s3() {
         // Given
-        BufferedImage image = new BufferedImage(10, 10, BufferedImage.TYPE_INT_RGB);
-        when(imageDao.findByName("thumbnail", "test.jpg")).thenReturn(image);
+        ImageContent stored = new ImageContent(new byte[]{1, 2, 3}, "image/jpeg");
+        when(imageDao.findByName("thumbnail", "test.jpg")).thenReturn(stored);
 
         // WHEN
-        byte[] result = imageResizeService.findResizedImage("thumbnail", "test.jpg");
+        imageResizeService.findResizedImage("thumbnail", "test.jpg");
+        ImageContent result = imageResizeService.findResizedImage("thumbnail", "test.jpg");
 
         // Then
-        assertNotNull(result);
+        assertSame(stored, result);
+        verify(imageDao, times(1)).findByName("thumbnail", "test.jpg");
+        assertEquals(1, imageCache.stats().hitCount());
+        assertEquals(1, meterRegistry.get("image.request").tags("type", "thumbnail", "outcome", "cache").timer().count());
+        assertEquals(1, meterRegistry.get("image.request").tags("type", "thumbnail", "outcome", "s3").timer().count());
+        assertEquals(1, imageCache.stats().missCount());
+    }
+
+    @Test
+    public void should_serve_variant_from_disk_after_the_memory_cache_is_lost(@TempDir Path directory) {
+        // Given
+        ImageDiskCacheConfig diskCacheConfig =
+                new ImageDiskCacheConfig(true, directory.toString(), DataSize.ofMegabytes(10), DataSize.ofMegabytes(1));
+        imageDiskCache = new ImageDiskCache(diskCacheConfig, new ImageCacheConfig(), new SimpleMeterRegistry());
+        imageResizeService = new ImageResizeService(imageDao, imageCache, imageDiskCache, imageResizeUtil,
+                resizeExecutor, imagePersistenceService, connectionService, metrics, "sourceUrl", false);
+        ImageContent stored = new ImageContent(new byte[]{1, 2, 3}, "image/jpeg");
+        when(imageDao.findByName("thumbnail", "test.jpg")).thenReturn(stored);
+        imageResizeService.findResizedImage("thumbnail", "test.jpg");
+        imageCache.invalidateAll();
+
+        // WHEN
+        ImageContent result = imageResizeService.findResizedImage("thumbnail", "test.jpg");
+
+        // Then
+        assertArrayEquals(stored.getContent(), result.getContent());
+        assertEquals(stored.getEtag(), result.getEtag());
+        verify(imageDao, times(1)).findByName("thumbnail", "test.jpg");
+        assertEquals(1, meterRegistry.get("image.request").tags("type", "thumbnail", "outcome", "disk").timer().count());
+
+        // WHEN
+        imageResizeService.flush("thumbnail", "test.jpg");
+
+        // Then
+        assertNull(imageDiskCache.get("thumbnail", "test.jpg"));
+        imageDiskCache.close();
+    }
+
+    @Test
+    public void should_invalidate_cached_variant_on_flush() {
+        // Given
+        imageCache.put("thumbnail", "test.jpg", new ImageContent(new byte[]{1, 2, 3}, "image/jpeg"));
+        imageCache.put("detail-large", "test.jpg", new ImageContent(new byte[]{1, 2, 3}, "image/jpeg"));
+
+        // WHEN
+        imageResizeService.flush("thumbnail", "test.jpg");
+
+        // Then
+        assertNull(imageCache.get("thumbnail", "test.jpg"));
+        assertNotNull(imageCache.get("detail-large", "test.jpg"));
+
+        // WHEN
+        imageResizeService.flush("original", "test.jpg");
+
+        // Then
+        assertNull(imageCache.get("detail-large", "test.jpg"));
+    }
+
+    @Test
+    public void should_return_stored_image_without_decoding() {
+        // Given
+        ImageContent stored = new ImageContent(new byte[]{1, 2, 3}, "image/jpeg");
+        when(imageDao.findByName("thumbnail", "test.jpg")).thenReturn(stored);
+
+        // WHEN
+        ImageContent result = imageResizeService.findResizedImage("thumbnail", "test.jpg");
+
+        // Then
+        assertSame(stored, result);
+        verifyNoInteractions(imageResizeUtil);
     }
 
     @Test
     public void should_resized_the_original_image_first() throws IOException {
         // Given
-        BufferedImage image = new BufferedImage(10, 10, BufferedImage.TYPE_INT_RGB);
-        BufferedImage resized = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
+        ImageContent original = new ImageContent(new byte[]{1, 2, 3}, "image/jpeg");
+        ImageContent resized = new ImageContent(new byte[]{4, 5, 6}, "image/jpeg");
         when(imageDao.findByName("thumbnail", "test.jpg")).thenReturn(null);
-        when(imageDao.findByName("original", "test.jpg")).thenReturn(image);
-        when(imageResizeUtil.resize(image)).thenReturn(resized);
+        when(imageDao.findByName("original", "test.jpg")).thenReturn(original);
+        when(imageResizeUtil.resize(original.getContent())).thenReturn(resized);
         // WHEN
-        byte[] result = imageResizeService.findResizedImage("thumbnail", "test.jpg");
+        ImageContent result = imageResizeService.findResizedImage("thumbnail", "test.jpg");
 
         // Then
-        final ByteArrayOutputStream output = new ByteArrayOutputStream();
-        ImageIO.write(resized, "jpg", output);
-        assertArrayEquals(result, output.toByteArray());
+        assertSame(resized, result);
+        verify(imageDao).save(resized, "test.jpg", "thumbnail");
     }
 
     @Test
     public void should_download_the_original_and_save_in_aws() throws IOException {
         // Given
-        BufferedImage image = new BufferedImage(10, 10, BufferedImage.TYPE_INT_RGB);
-        BufferedImage resized = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
+        ImageContent original = new ImageContent(new byte[]{1, 2, 3}, "image/jpeg");
+        ImageContent resized = new ImageContent(new byte[]{4, 5, 6}, "image/jpeg");
         when(imageDao.findByName("thumbnail", "test.jpg")).thenReturn(null);
         when(imageDao.findByName("original", "test.jpg")).thenReturn(null);
-        when(connectionService.downloadImage(anyString())).thenReturn(image);
-        when(imageResizeUtil.resize(image)).thenReturn(resized);
+        when(connectionService.downloadImage(anyString())).thenReturn(original);
+        when(imageResizeUtil.resize(original.getContent())).thenReturn(resized);
+        // WHEN
+        ImageContent result = imageResizeService.findResizedImage("thumbnail", "test.jpg");
+
+        // Then
+        assertSame(resized, result);
+        verify(imageDao).save(original, "test.jpg", "original");
+        verify(imageDao).save(resized, "test.jpg", "thumbnail");
+    }
+
+    @Test
+    public void should_store_and_cache_every_variant_from_one_resize() throws IOException {
+        // Given
+        imageResizeService = new ImageResizeService(imageDao, imageCache, imageDiskCache, imageResizeUtil,
+                resizeExecutor, imagePersistenceService, connectionService, metrics, "sourceUrl", true);
+        ImageContent original = new ImageContent(new byte[]{1, 2, 3}, "image/jpeg");
+        ImageContent resized = new ImageContent(new byte[]{4, 5, 6}, "image/jpeg");
+        when(imageDao.findByName("thumbnail", "test.jpg")).thenReturn(null);
+        when(imageDao.findByName("original", "test.jpg")).thenReturn(original);
+        when(imageResizeUtil.resize(original.getContent())).thenReturn(resized);
+
+        // WHEN
+        imageResizeService.findResizedImage("thumbnail", "test.jpg");
+        ImageContent result = imageResizeService.findResizedImage("detail-large", "test.jpg");
+
+        // Then
+        assertSame(resized, result);
+        verify(imageResizeUtil, times(1)).resize(original.getContent());
+        verify(imageDao).save(resized, "test.jpg", "thumbnail");
+        verify(imageDao).save(resized, "test.jpg", "detail-large");
+        verify(imageDao, never()).findByName("detail-large", "test.jpg");
+    }
+
+    @Test
+    public void should_prerender_only_missing_variants() throws IOException {
+        // Given
+        ImageContent original = new ImageContent(new byte[]{1, 2, 3}, "image/jpeg");
+        ImageContent resized = new ImageContent(new byte[]{4, 5, 6}, "image/jpeg");
+        when(imageDao.exists("thumbnail", "test.jpg")).thenReturn(true);
+        when(imageDao.exists("detail-large", "test.jpg")).thenReturn(false);
+        when(imageDao.findByName("original", "test.jpg")).thenReturn(original);
+        when(imageResizeUtil.resize(original.getContent())).thenReturn(resized);
+
         // WHEN
-        byte[] result = imageResizeService.findResizedImage("thumbnail", "test.jpg");
+        boolean thumbnail = imageResizeService.prerender("thumbnail", "test.jpg");
+        boolean detailLarge = imageResizeService.prerender("detail-large", "test.jpg");
 
         // Then
-        final ByteArrayOutputStream output = new ByteArrayOutputStream();
-        ImageIO.write(resized, "jpg", output);
-        assertArrayEquals(result, output.toByteArray());
+        assertFalse(thumbnail);
+        assertTrue(detailLarge);
+        verify(imageDao).save(resized, "test.jpg", "detail-large");
+        verify(imageDao, never()).save(resized, "test.jpg", "thumbnail");
+        assertNull(imageCache.get("detail-large", "test.jpg"));
+    }
+
+    @Test
+    public void should_coalesce_concurrent_misses_for_the_same_image() throws Exception {
+        // Given
+        ImageContent original = new ImageContent(new byte[]{1, 2, 3}, "image/jpeg");
+        ImageContent resized = new ImageContent(new byte[]{4, 5, 6}, "image/jpeg");
+        CountDownLatch downloadStarted = new CountDownLatch(1);
+        CountDownLatch releaseDownload = new CountDownLatch(1);
+        when(imageDao.findByName("thumbnail", "test.jpg")).thenReturn(null);
+        when(imageDao.findByName("original", "test.jpg")).thenReturn(null);
+        when(connectionService.downloadImage(anyString())).thenAnswer(invocation -> {
+            downloadStarted.countDown();
+            releaseDownload.await();
+            return original;
+        });
+        when(imageResizeUtil.resize(original.getContent())).thenReturn(resized);
+
+        // WHEN
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<ImageContent>> results = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                results.add(executor.submit(() -> imageResizeService.findResizedImage("thumbnail", "test.jpg")));
+            }
+            assertTrue(downloadStarted.await(5, TimeUnit.SECONDS));
+            releaseDownload.countDown();
+
+            // Then
+            for (Future<ImageContent> result : results) {
+                assertSame(resized, result.get(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        verify(connectionService, times(1)).downloadImage(anyString());
+        verify(imageDao, times(1)).save(resized, "test.jpg", "thumbnail");
     }
 
     @Test
@@ -108,6 +304,21 @@ public class ImageResizeServiceTest {
         verify(imageDao).deleteObject(originalFilename, predefinedTypeName);
     }
 
+    @Test
+    public void should_flush_many_references_at_once() {
+        // Given
+        imageCache.put("thumbnail", "a.jpg", new ImageContent(new byte[]{1, 2, 3}, "image/jpeg"));
+        imageCache.put("detail-large", "b.jpg", new ImageContent(new byte[]{1, 2, 3}, "image/jpeg"));
+
+        // WHEN
+        imageResizeService.flush("original", List.of("a.jpg", "b.jpg"));
+
+        // Then
+        verify(imageDao).deleteObjects(List.of("a.jpg", "b.jpg"), "original");
+        assertNull(imageCache.get("thumbnail", "a.jpg"));
+        assertNull(imageCache.get("detail-large", "b.jpg"));
+    }
+
     @Test
     public void testFlushException() {
 
@@ -133,11 +344,11 @@ public class ImageResizeServiceTest {
     @Test
     public void should_throw_exception_when_fail_save_image_in_s3() throws IOException {
         // Given
-        BufferedImage image = new BufferedImage(10, 10, BufferedImage.TYPE_INT_RGB);
-        BufferedImage resized = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
+        ImageContent original = new ImageContent(new byte[]{1, 2, 3}, "image/jpeg");
+        ImageContent resized = new ImageContent(new byte[]{4, 5, 6}, "image/jpeg");
         when(imageDao.findByName("thumbnail", "test.jpg")).thenReturn(null);
-        when(imageDao.findByName("original", "test.jpg")).thenReturn(image);
-        when(imageResizeUtil.resize(image)).thenReturn(resized);
+        when(imageDao.findByName("original", "test.jpg")).thenReturn(original);
+        when(imageResizeUtil.resize(original.getContent())).thenReturn(resized);
         doThrow(new IllegalArgumentException("test")).when(imageDao).save(resized, "test.jpg", "thumbnail");
         // Then
         assertThrows(NoResourceFoundException.class, () -> imageResizeService.findResizedImage("thumbnail", "test.jpg"));
@@ -0,0 +1,77 @@
+package com.deBijenkorf.imageresizeservice.service;
+
+import com.deBijenkorf.imageresizeservice.config.ImageResizeExecutorConfig;
+import com.deBijenkorf.imageresizeservice.exception.ServiceOverloadedException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ResizeExecutorTest {
+
+    private ResizeExecutor resizeExecutor;
+
+    private SimpleMeterRegistry meterRegistry;
+
+    private ExecutorService callers;
+
+    @BeforeEach
+    public void setup() {
+        meterRegistry = new SimpleMeterRegistry();
+        resizeExecutor = new ResizeExecutor(new ImageResizeExecutorConfig(1, 1, Duration.ofSeconds(2), 1_000_000L,
+                true, 2048 * 2048), meterRegistry);
+        callers = Executors.newFixedThreadPool(2);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        callers.shutdownNow();
+        resizeExecutor.shutdown();
+    }
+
+    @Test
+    public void should_return_task_result() throws IOException {
+        Integer result = resizeExecutor.call(() -> 42);
+
+        assertEquals(42, result);
+        assertEquals(1, meterRegistry.timer("image.resize.queue.wait").count());
+    }
+
+    @Test
+    public void should_propagate_task_failure() {
+        assertThrows(IOException.class, () -> resizeExecutor.call(() -> {
+            throw new IOException("test");
+        }));
+    }
+
+    @Test
+    public void should_reject_when_queue_is_full() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Future<Integer> running = callers.submit(() -> resizeExecutor.call(() -> {
+            started.countDown();
+            release.await();
+            return 1;
+        }));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        Future<Integer> queued = callers.submit(() -> resizeExecutor.call(() -> 2));
+        while (meterRegistry.get("image.resize.queue.size").gauge().value() < 1) {
+            Thread.sleep(5);
+        }
+
+        ServiceOverloadedException exception = assertThrows(ServiceOverloadedException.class,
+                () -> resizeExecutor.call(() -> 3));
+
+        assertEquals(Duration.ofSeconds(2), exception.getRetryAfter());
+        assertEquals(1, meterRegistry.counter("image.resize.rejected").count());
+        release.countDown();
+        assertEquals(1, running.get(5, TimeUnit.SECONDS));
+        assertEquals(2, queued.get(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,79 @@
+package com.deBijenkorf.imageresizeservice.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ConvolutionResamplingEngineTest {
+
+    @Test
+    public void testWeightsSumToOne() {
+        ConvolutionResamplingEngine.WeightTable weights = ConvolutionResamplingEngine.LANCZOS.weights(1200, 200);
+        for (int i = 0; i < 200; i++) {
+            int sum = Arrays.stream(weights.weights, i * weights.stride, i * weights.stride + weights.count[i]).sum();
+            assertEquals(1 << 14, sum, 8);
+        }
+    }
+
+    @Test
+    public void testSameSizeKeepsPixels() {
+        BufferedImage source = new BufferedImage(7, 5, BufferedImage.TYPE_INT_RGB);
+        source.setRGB(3, 2, 0xffffff);
+        BufferedImage target = new BufferedImage(7, 5, BufferedImage.TYPE_INT_RGB);
+
+        ConvolutionResamplingEngine.MITCHELL.resample(source, target);
+
+        assertEquals(0xffffff, target.getRGB(3, 2) & 0xffffff);
+        assertEquals(0, target.getRGB(0, 0) & 0xffffff);
+    }
+
+    @Test
+    public void testDownscaleAveragesUniformImage() {
+        BufferedImage source = new BufferedImage(300, 300, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < 300; y++) {
+            for (int x = 0; x < 300; x++) {
+                source.setRGB(x, y, 0xff3260a8);
+            }
+        }
+        BufferedImage target = new BufferedImage(40, 30, BufferedImage.TYPE_INT_RGB);
+
+        ConvolutionResamplingEngine.LANCZOS.resample(source, target);
+
+        assertEquals(0x3260a8, target.getRGB(20, 15) & 0xffffff);
+        assertEquals(0x3260a8, target.getRGB(0, 0) & 0xffffff);
+    }
+
+    @Test
+    public void testParallelBandsMatchSerialOutput() {
+        BufferedImage source = new BufferedImage(1000, 700, BufferedImage.TYPE_INT_ARGB);
+        Random random = new Random(42);
+        for (int y = 0; y < 700; y++) {
+            for (int x = 0; x < 1000; x++) {
+                source.setRGB(x, y, random.nextInt());
+            }
+        }
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (ConvolutionResamplingEngine engine : List.of(ConvolutionResamplingEngine.LANCZOS,
+                    ConvolutionResamplingEngine.MITCHELL)) {
+                BufferedImage serial = new BufferedImage(300, 250, BufferedImage.TYPE_INT_RGB);
+                BufferedImage parallel = new BufferedImage(300, 250, BufferedImage.TYPE_INT_RGB);
+
+                engine.resample(source, serial);
+                engine.resample(source, parallel, RasterPool.UNPOOLED, pool);
+
+                assertArrayEquals(serial.getRGB(0, 0, 300, 250, null, 0, 300),
+                        parallel.getRGB(0, 0, 300, 250, null, 0, 300));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.deBijenkorf.imageresizeservice.util;
+
+import com.deBijenkorf.imageresizeservice.model.ImageType;
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ImageCodecsTest {
+
+    @Test
+    public void testPooledCodecsAreReusableAfterAFailedRead() throws IOException {
+        BufferedImage image = new BufferedImage(64, 48, BufferedImage.TYPE_INT_RGB);
+        image.setRGB(10, 20, 0x336699);
+
+        for (ImageType imageType : ImageType.values()) {
+            byte[] encoded = ImageCodecs.write(image, imageType, 1f, 1024);
+            byte[] truncated = Arrays.copyOf(encoded, encoded.length / 2);
+
+            assertThrows(IOException.class, () -> ImageCodecs.read(truncated, reader -> reader.read(0)),
+                    imageType.name());
+            BufferedImage decoded = ImageCodecs.read(encoded, reader -> reader.read(0));
+            assertEquals(64, decoded.getWidth(), imageType.name());
+            assertEquals(48, decoded.getHeight(), imageType.name());
+        }
+        assertFalse(ImageIO.getUseCache());
+    }
+
+    @Test
+    public void testOtherFormatsAreReadThroughTheRegistry() throws IOException {
+        ByteArrayOutputStream gif = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(30, 20, BufferedImage.TYPE_INT_RGB), "gif", gif);
+
+        int width = ImageCodecs.read(gif.toByteArray(), reader -> reader.getWidth(0));
+        assertEquals(30, width);
+        assertEquals("gif", ImageCodecs.read(gif.toByteArray(), reader -> reader.getFormatName()));
+        assertNull(ImageCodecs.read(new byte[]{1, 2, 3}, reader -> reader.getWidth(0)));
+    }
+}
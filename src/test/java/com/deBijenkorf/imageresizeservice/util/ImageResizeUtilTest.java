@@ -1,43 +1,66 @@
 package com.deBijenkorf.imageresizeservice.util;
 
 import com.deBijenkorf.imageresizeservice.config.ImageConfig;
+import com.deBijenkorf.imageresizeservice.config.ImageResizeExecutorConfig;
+import com.deBijenkorf.imageresizeservice.model.ImageContent;
 import com.deBijenkorf.imageresizeservice.model.ImageType;
+import com.deBijenkorf.imageresizeservice.model.ResamplingType;
 import com.deBijenkorf.imageresizeservice.model.ScaleType;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.springframework.http.MediaType;
 
 import javax.imageio.ImageIO;
+import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 
-import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.*;
 
 class ImageResizeUtilTest {
 
     private ImageResizeUtil imageResizeUtil;
     private BufferedImage testImage;
     private ImageConfig imageConfig;
+    private ImageResizeExecutorConfig resizeExecutorConfig;
 
     @BeforeEach
     public void setup() throws IOException {
-        imageConfig = new ImageConfig(200, 200, 80, ScaleType.Crop, "#3260a8", ImageType.PNG);
-        imageResizeUtil = new ImageResizeUtil(imageConfig);
+        imageConfig = new ImageConfig(200, 200, 80, ScaleType.Crop, "#3260a8", ImageType.PNG, ResamplingType.Java2D);
+        resizeExecutorConfig = new ImageResizeExecutorConfig();
+        imageResizeUtil = new ImageResizeUtil(imageConfig, new ImageUtil(),
+                new ImagePipelineMetrics(new SimpleMeterRegistry(), imageConfig), resizeExecutorConfig);
         testImage = ImageIO.read(new File("src/test/resources/static/test-image.jpg"));
     }
 
     @Test
     public void testResizeQuality() throws IOException {
-        BufferedImage resizedImage = imageResizeUtil.resize(testImage);
+        ImageContent resizedContent = imageResizeUtil.resize(testImage);
+        BufferedImage resizedImage = decode(resizedContent);
+        assertEquals(MediaType.IMAGE_PNG_VALUE, resizedContent.getContentType());
         assertTrue(resizedImage.getWidth() <= imageConfig.getWidth());
         assertTrue(resizedImage.getHeight() <= imageConfig.getHeight());
     }
 
+    @Test
+    public void testResizeEncodesConfiguredType() throws IOException {
+        imageConfig.setType(ImageType.JPG);
+        ImageContent resizedContent = imageResizeUtil.resize(testImage);
+        assertEquals(MediaType.IMAGE_JPEG_VALUE, resizedContent.getContentType());
+        assertEquals(imageConfig.getWidth(), decode(resizedContent).getWidth());
+    }
+
     @Test
     public void testSkew() throws IOException {
         imageConfig.setScaleType(ScaleType.Skew);
         final String pathname = "src/test/resources/static/test_output_skew.jpg";
-        final BufferedImage resize = imageResizeUtil.resize(testImage);
+        final BufferedImage resize = decode(imageResizeUtil.resize(testImage));
         ImageIO.write(resize, "jpg", new File(pathname));
         assertTrue(new File(pathname).exists());
     }
@@ -46,7 +69,7 @@ class ImageResizeUtilTest {
     public void testFill() throws IOException {
         imageConfig.setScaleType(ScaleType.Fill);
         final String pathname = "src/test/resources/static/test_output_fill.jpg";
-        ImageIO.write(imageResizeUtil.resize(testImage), "jpg", new File(pathname));
+        ImageIO.write(decode(imageResizeUtil.resize(testImage)), "jpg", new File(pathname));
         assertTrue(new File(pathname).exists());
     }
 
@@ -54,7 +77,148 @@ class ImageResizeUtilTest {
     public void testCrop() throws IOException {
         imageConfig.setScaleType(ScaleType.Crop);
         final String pathname = "src/test/resources/static/test_output_crop.jpg";
-        ImageIO.write(imageResizeUtil.resize(testImage), "jpg", new File(pathname));
+        ImageIO.write(decode(imageResizeUtil.resize(testImage)), "jpg", new File(pathname));
         assertTrue(new File(pathname).exists());
     }
+
+    @Test
+    public void testResizeEncodedOriginalDecodesOnlyVisibleRegion() throws IOException {
+        byte[] original = Files.readAllBytes(Path.of("src/test/resources/static/test-image.jpg"));
+        for (ScaleType scaleType : ScaleType.values()) {
+            imageConfig.setScaleType(scaleType);
+            assertArrayEquals(imageResizeUtil.resize(ImageIO.read(new ByteArrayInputStream(original))).getContent(),
+                    imageResizeUtil.resize(original).getContent(), scaleType.name());
+        }
+    }
+
+    @Test
+    public void testSubsamplingOnlyWhenCropping() {
+        imageConfig.setWidth(100);
+        imageConfig.setHeight(50);
+        Rectangle region = imageResizeUtil.sourceRegion(1200, 563);
+        assertEquals(new Rectangle(300, 140, 600, 282), region);
+        assertEquals(5, imageResizeUtil.subsampling(region));
+
+        imageConfig.setScaleType(ScaleType.Fill);
+        region = imageResizeUtil.sourceRegion(1200, 563);
+        assertEquals(new Rectangle(550, 256, 100, 50), region);
+        assertEquals(1, imageResizeUtil.subsampling(region));
+    }
+
+    @Test
+    public void testCropWithEveryResamplingEngine() throws IOException {
+        imageConfig.setScaleType(ScaleType.Crop);
+        for (ResamplingType resamplingType : ResamplingType.values()) {
+            imageConfig.setResampling(resamplingType);
+            BufferedImage resizedImage = decode(imageResizeUtil.resize(testImage));
+            assertEquals(imageConfig.getWidth(), resizedImage.getWidth(), resamplingType.name());
+            assertEquals(imageConfig.getHeight(), resizedImage.getHeight(), resamplingType.name());
+        }
+    }
+
+    @Test
+    public void testConvolutionEnginesKeepTwiceTheVariantSizeWhenSubsampling() {
+        imageConfig.setWidth(100);
+        imageConfig.setHeight(50);
+        imageConfig.setResampling(ResamplingType.Lanczos);
+
+        assertEquals(2, imageResizeUtil.subsampling(imageResizeUtil.sourceRegion(1200, 563)));
+    }
+
+    @Test
+    public void testParallelResamplingMatchesSerialOutput() throws IOException {
+        imageConfig.setResampling(ResamplingType.Lanczos);
+        assertTrue(imageResizeUtil.isParallel(1200, 900));
+        assertFalse(imageResizeUtil.isParallel(800, 800));
+
+        byte[] original = encode(opaque(1200, 900), "png");
+        byte[] serial = imageResizeUtil.resize(original).getContent();
+        resizeExecutorConfig.setParallelThreshold(0L);
+        byte[] parallel = imageResizeUtil.resize(original).getContent();
+
+        assertArrayEquals(serial, parallel);
+    }
+
+    @Test
+    public void testFillPassesThroughOriginalThatAlreadyIsTheVariant() throws IOException {
+        imageConfig.setScaleType(ScaleType.Fill);
+        byte[] original = encode(opaque(200, 200), "png");
+
+        ImageContent resizedContent = imageResizeUtil.resize(original);
+
+        assertSame(original, resizedContent.getContent());
+        assertEquals(MediaType.IMAGE_PNG_VALUE, resizedContent.getContentType());
+    }
+
+    @Test
+    public void testFillReencodesOriginalOfTheVariantSizeInAnotherFormat() throws IOException {
+        imageConfig.setScaleType(ScaleType.Fill);
+        byte[] original = encode(opaque(200, 200), "jpg");
+
+        ImageContent resizedContent = imageResizeUtil.resize(original);
+
+        assertNotSame(original, resizedContent.getContent());
+        assertEquals(MediaType.IMAGE_PNG_VALUE, resizedContent.getContentType());
+        assertEquals(200, decode(resizedContent).getWidth());
+    }
+
+    @Test
+    public void testCropWithoutScalingKeepsTheDecodedPixels() throws IOException {
+        imageConfig.setScaleType(ScaleType.Crop);
+        imageConfig.setResampling(ResamplingType.Mitchell);
+        BufferedImage original = opaque(400, 400);
+
+        BufferedImage resizedImage = decode(imageResizeUtil.resize(encode(original, "png")));
+
+        for (int y = 0; y < 200; y += 7) {
+            for (int x = 0; x < 200; x += 7) {
+                assertEquals(original.getRGB(x + 100, y + 100), resizedImage.getRGB(x, y));
+            }
+        }
+    }
+
+    @Test
+    public void testPooledBuffersDoNotCarryOverBetweenResizes() throws IOException {
+        byte[] original = Files.readAllBytes(Path.of("src/test/resources/static/test-image.jpg"));
+        BufferedImage white = new BufferedImage(900, 700, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D graphics = white.createGraphics();
+        graphics.setColor(Color.WHITE);
+        graphics.fillRect(0, 0, 900, 700);
+        graphics.dispose();
+
+        for (ScaleType scaleType : ScaleType.values()) {
+            for (ResamplingType resamplingType : ResamplingType.values()) {
+                imageConfig.setScaleType(scaleType);
+                imageConfig.setResampling(resamplingType);
+                byte[] first = imageResizeUtil.resize(original).getContent();
+                imageResizeUtil.resize(white);
+                assertArrayEquals(first, imageResizeUtil.resize(original).getContent(),
+                        scaleType + " " + resamplingType);
+            }
+        }
+    }
+
+    @Test
+    public void testResizeRejectsUnsupportedFormat() {
+        assertThrows(IOException.class, () -> imageResizeUtil.resize(new byte[]{1, 2, 3}));
+    }
+
+    // The test image has an alpha channel, the originals that can skip rendering are opaque
+    private BufferedImage opaque(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        graphics.drawImage(testImage, 0, 0, null);
+        graphics.dispose();
+        return image;
+    }
+
+    private byte[] encode(BufferedImage image, String format) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ImageIO.write(image, format, output);
+        return output.toByteArray();
+    }
+
+    private BufferedImage decode(ImageContent imageContent) throws IOException {
+        return ImageIO.read(new ByteArrayInputStream(imageContent.getContent()));
+    }
 }
\ No newline at end of file